@@ -25,20 +25,50 @@ function unixTimestamp() { // seconds
 function base64ToFingerprint(base64) {
   // convert from base64 to buffer
   let fingerprintBuffer = Buffer.from(base64, 'base64');
-  if (fingerprintBuffer.length !== 256) {
-    throw Error('Expected a 256-byte (128 short) base64-encoded fingerprint, but its length was '
+  
+  // version 0 is just the 128 shorts, version 1 has a version byte first
+  let offset;
+  if (fingerprintBuffer.length === 256) {
+    offset = 0;
+  } else if (fingerprintBuffer.length === 257 && fingerprintBuffer[0] === 1) {
+    offset = 1;
+  } else {
+    throw Error('Expected a 256-byte (128 short) or versioned 257-byte base64-encoded fingerprint, but its length was '
       + fingerprintBuffer.length + ' bytes.');
   }
   
-  // convert from buffer to fingerprint array
+  // convert from buffer to fingerprint array (signed little-endian shorts, as both clients write them)
   let fingerprint = [];
   for (let i = 0; i < 128; ++i) {
-    fingerprint.push((fingerprintBuffer[2*i] << 8) + fingerprintBuffer[2*i+1]);
+    fingerprint.push(fingerprintBuffer.readInt16LE(offset + 2*i));
   }
   
   return fingerprint;
 }
 
+/**
+ * The 8-bit form of a base64-encoded fingerprint, as the doctor client's FingerprintCodec.encode8 makes it: a version
+ * byte of 2, a little-endian float scale (the largest component over 127), then each component over the scale,
+ * rounded to a signed byte. Returns null if it isn't a valid fingerprint.
+ */
+function fingerprintTo8Bit(base64) {
+  let fingerprint;
+  try {
+    fingerprint = base64ToFingerprint(base64);
+  } catch (e) {
+    return null;
+  }
+  let max = Math.max(...fingerprint.map(Math.abs));
+  let scale = max === 0 ? 1 : Math.fround(max / 127);
+  let buffer = Buffer.alloc(1 + 4 + 128);
+  buffer.writeUInt8(2, 0);
+  buffer.writeFloatLE(scale, 1);
+  for (let i = 0; i < 128; ++i) {
+    buffer.writeInt8(Math.round(Math.fround(fingerprint[i] / scale)), 5 + i);
+  }
+  return buffer.toString('base64');
+}
+
 function squareEuclideanDistance(vector1, vector2) { // 128-vectors
   let sq = bigInt.zero;
   for (let i = 0; i < 128; ++i) {
@@ -177,3 +207,66 @@ exports.pharmacy_done = functions.https.onRequest((req, res) => {
     res.status(500).send(err).end();
   });
 });
+
+/**
+ * Keep the user index (just the id, name and doctors of each user, which is all the doctor client's lists need) in
+ * step with the users, whoever writes them. Watching only those two fields means kiosk records don't wake these up.
+ */
+exports.user_index_name = functions.database.ref('/arka/user/{id}/name').onWrite((change, context) => {
+  let entry = db.ref('arka/userIndex').child(context.params.id);
+  if (!change.after.exists()) {
+    return entry.remove(); // the user was deleted (a user always has a name)
+  }
+  return entry.update({
+    "id": parseInt(context.params.id, 10),
+    "name": change.after.val()
+  });
+});
+
+exports.user_index_doctors = functions.database.ref('/arka/user/{id}/doctors').onWrite((change, context) => {
+  return db.ref('arka/user').child(context.params.id).child('name').once('value').then(name => {
+    if (!name.exists()) return null; // deleted, user_index_name takes care of it
+    // update with the id, rather than setting just the doctors, since this may run before user_index_name has made
+    // the entry; the client takes the id from the key anyway
+    return db.ref('arka/userIndex').child(context.params.id).update({
+      "id": parseInt(context.params.id, 10),
+      "doctors": change.after.exists() ? change.after.val() : null
+    });
+  });
+});
+
+/**
+ * Keep each user's fingerprint, in the 8-bit form, at /arka/userFingerprint, so the doctor client can check new
+ * patients against everyone's face without downloading whole users.
+ */
+exports.user_fingerprint = functions.database.ref('/arka/user/{id}/fingerprint').onWrite((change, context) => {
+  let entry = db.ref('arka/userFingerprint').child(context.params.id);
+  let fingerprint8 = change.after.exists() ? fingerprintTo8Bit(change.after.val()) : null;
+  return fingerprint8 === null ? entry.remove() : entry.set(fingerprint8);
+});
+
+/**
+ * Build the user index and fingerprints from scratch, for users written before they existed. Only needs running
+ * once.
+ */
+exports.user_index_rebuild = functions.https.onRequest((req, res) => {
+  db.ref('arka/user').once('value', data => {
+    let users = data.val() || {};
+    let index = {};
+    let fingerprints = {};
+    for (let id of Object.keys(users)) {
+      index[id] = { "id": parseInt(id, 10), "name": users[id].name || "", "doctors": users[id].doctors || [] };
+      let fingerprint8 = fingerprintTo8Bit(users[id].fingerprint);
+      if (fingerprint8 !== null) fingerprints[id] = fingerprint8;
+    }
+    db.ref('arka').update({ "userIndex": index, "userFingerprint": fingerprints }, error => {
+      if (error) {
+        res.status(500).send(error);
+      } else {
+        res.status(200).send({ "users": Object.keys(index).length });
+      }
+    });
+  }, err => {
+    res.status(500).send(err).end();
+  });
+});
@@ -40,26 +40,41 @@ class Firebase_Server():
         self._useref = db.reference('arka/user/')
 
     def createUser (self, user):
-        self._useref.child(user._id).set({
-            'name': user._name,
-            'doctors': user._doctors,
-            'prescriptions': {},
-            'fingerprint': user._fingerprint,
-            'record': {},
-        })
+        self.createUsers([user])
+
+    #Creates users a batch at a time: each batch is one atomic multi-path write, rather than a write for every
+    #prescription and record of every user. (The user_index_name cloud function adds them to the userIndex.)
+    def createUsers (self, users, batch_size=500):
+        for start in range(0, len(users), batch_size):
+            paths = {}
+            for user in users[start:start + batch_size]:
+                paths.update(self._userPaths(user))
+            self._ref.update(paths)
+
+    def _userPaths (self, user):
+        prescriptions = {}
         for pres in user._prescription:
-            self._useref.child(user._id).child('prescriptions').child("DIN_" + pres._din).set({
+            prescriptions["DIN_" + pres._din] = {
                 'type': pres._type,
                 'din': int(pres._din),
                 'timestamp': int(pres._timestamp),
                 'expires': int(pres._expires),
-            })
-        for record in user._record:
-            self._useref.child(user._id).child('record').push().set({
+            }
+        records = {}
+        for i, record in enumerate(user._record):
+            records["%d_%d" % (int(record._timestamp), i)] = {
                 'dins': record._dins,
                 'timestamp': int(record._timestamp),
-            })
-
+            }
+        return {
+            'user/' + str(user._id): {
+                'name': user._name,
+                'doctors': user._doctors,
+                'prescriptions': prescriptions,
+                'fingerprint': user._fingerprint,
+                'record': records,
+            },
+        }
 
     def createPrescriptions (self, id, prescriptions):
         self._useref.child(id).update({
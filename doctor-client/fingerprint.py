@@ -12,6 +12,29 @@ import face_recognition
 #   higher makes it less likely to detect the wrong face, but we also shouldn't be too cautious
 area_safety_factor = 4
 
+# constants: worker protocol
+#   every message is a header (u8 type or status, u32 payload length) followed by the payload, all big-endian
+#   the worker answers each request with exactly one response, in order
+header_format = '>BI'
+header_size = struct.calcsize(header_format)
+request_ping = 0
+request_embed_file = 1
+request_embed_slot = 2
+
+# constants: shared frame ring layout (see FrameRing.java)
+#   header: magic, slot count, slot capacity, reserved; each slot: width, height, stride, length, then the pixels
+ring_header_format = '>IIII'
+ring_header_size = struct.calcsize(ring_header_format)
+slot_header_format = '>IIII'
+slot_header_size = struct.calcsize(slot_header_format)
+ring_magic = 0x41524B46
+
+# the frame ring we're currently attached to, as (filename, memmap)
+attached_ring = (None, None)
+status_ok = 0
+status_no_face = 1
+status_error = 2
+
 def generate_fingerprint(pixels):
     # OpenCV uses BGR as its output format but we want RGB
     pixels = cv2.cvtColor(pixels, cv2.COLOR_BGR2RGB)
@@ -44,8 +67,8 @@ def generate_fingerprint(pixels):
             logging.log(logging.DEBUG, 'Determined that no face is significant enough to use')
             face_boxes = []
 
-    # no faces means nothing to do
-    if num_faces == 0:
+    # no faces (or no significant face) means nothing to do
+    if len(face_boxes) == 0:
         return
 
     # generate the 128-vector as face fingerprint
@@ -57,6 +80,94 @@ def generate_fingerprint(pixels):
     return fingerprint
 
 
+def read_exactly(stream, size):
+    # returns None if the stream was closed before we got everything
+    data = b''
+    while len(data) < size:
+        chunk = stream.read(size - len(data))
+        if not chunk:
+            return None
+        data += chunk
+    return data
+
+
+def write_response(stream, status, payload=b''):
+    stream.write(struct.pack(header_format, status, len(payload)))
+    stream.write(payload)
+    stream.flush()
+
+
+def ring_frame(filename, slot):
+    # returns the BGR pixels in the given slot of the frame ring, without copying them
+    global attached_ring
+    if attached_ring[0] != filename:
+        attached_ring = (filename, np.memmap(filename, dtype=np.uint8, mode='r'))
+    ring = attached_ring[1]
+
+    magic, slot_count, slot_capacity, _ = struct.unpack_from(ring_header_format, ring, 0)
+    if magic != ring_magic:
+        raise ValueError('Not a frame ring: ' + filename)
+    if slot >= slot_count:
+        raise ValueError('Frame ring has no slot ' + str(slot))
+
+    offset = ring_header_size + slot * (slot_header_size + slot_capacity)
+    width, height, stride, length = struct.unpack_from(slot_header_format, ring, offset)
+    start = offset + slot_header_size
+    return ring[start:start + length].reshape((height, width, 3))
+
+
+def handle_request(request_type, payload):
+    # returns the (status, payload) to respond with
+    if request_type == request_ping:
+        return status_ok, b''
+
+    if request_type == request_embed_file:
+        filename = payload.decode('utf-8')
+        logging.log(logging.DEBUG, 'Reading image from {}'.format(filename))
+        img = cv2.imread(filename)
+        if img is None:
+            raise ValueError('Could not read image from ' + filename)
+        fingerprint = generate_fingerprint(img)
+        if fingerprint is None:
+            return status_no_face, b''
+        return status_ok, struct.pack('>128d', *fingerprint)
+
+    if request_type == request_embed_slot:
+        # payload: u32 slot index, then the frame ring's filename
+        (slot,) = struct.unpack_from('>I', payload, 0)
+        fingerprint = generate_fingerprint(ring_frame(payload[4:].decode('utf-8'), slot))
+        if fingerprint is None:
+            return status_no_face, b''
+        return status_ok, struct.pack('>128d', *fingerprint)
+
+    raise ValueError('Unknown request type: ' + str(request_type))
+
+
+def run_worker():
+    # the models are loaded by now, so every request only pays for the actual work
+    stdin = sys.stdin.buffer
+    stdout = sys.stdout.buffer
+    logging.log(logging.DEBUG, 'Worker ready')
+
+    while True:
+        header = read_exactly(stdin, header_size)
+        if header is None:
+            break
+        request_type, length = struct.unpack(header_format, header)
+        payload = read_exactly(stdin, length)
+        if payload is None:
+            break
+
+        try:
+            status, response = handle_request(request_type, payload)
+        except Exception as e:
+            logging.exception('Request failed')
+            status, response = status_error, str(e).encode('utf-8')
+        write_response(stdout, status, response)
+
+    logging.log(logging.DEBUG, 'Input closed, worker exiting')
+
+
 if __name__ == '__main__':
     # we output to stderr so the Java app can mirror it to its stdout
     logging.basicConfig(stream=sys.stderr, level=logging.DEBUG)
@@ -64,9 +175,17 @@ if __name__ == '__main__':
     if len(sys.argv) != 2:
         raise ValueError('Incorrect number of command-line arguments: ' + str(len(sys.argv)))
 
+    if sys.argv[1] == '--worker':
+        # long-lived mode: stdout is reserved for protocol responses
+        run_worker()
+        sys.exit(0)
+
     filename = sys.argv[1]
     logging.log(logging.DEBUG, 'Reading image from {}'.format(filename))
 
     img = cv2.imread(filename)
-    for v in generate_fingerprint(img):
+    fingerprint = generate_fingerprint(img)
+    if fingerprint is None:
+        sys.exit(1)
+    for v in fingerprint:
         print(v)
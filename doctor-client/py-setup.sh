@@ -8,4 +8,6 @@ pip3 install numpy
 pip3 install opencv-python
 # face recognition libraries for python
 pip3 install dlib
-pip3 install face_recognition
\ No newline at end of file
+pip3 install face_recognition
+# the doctor's client uses OpenCV's frontal face cascade to skip frames without a face before running face_recognition
+python3 -c "import cv2, shutil; shutil.copy(cv2.data.haarcascades + 'haarcascade_frontalface_default.xml', '.')"
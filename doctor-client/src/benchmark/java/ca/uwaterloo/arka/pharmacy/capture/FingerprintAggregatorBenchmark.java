@@ -0,0 +1,151 @@
+package ca.uwaterloo.arka.pharmacy.capture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares FingerprintAggregator's convergence check with the one it replaced, which copied the sample list and
+ * removed each sample in turn to try leaving it out, and summed every sample again for each try.
+ * First it checks that both make the same decision after every sample of many random capture sessions, some of which
+ * converge and some of which don't (or only once an outlier is left out), and fails if they ever disagree. Then it
+ * times one check with n = 3 to 50 samples that don't agree, so that both have to try leaving out every sample.
+ * Run it with: gradle fingerprintAggregatorBenchmark --args="[sessions] [checks per n]"
+ */
+public class FingerprintAggregatorBenchmark {
+    
+    private static final int DIMENSIONS = 128;
+    private static final int MIN_SAMPLES = 3;
+    private static final int MAX_SAMPLES = 50;
+    private static final double COMPONENT_SPREAD = 0.09; // of a face's encoding, like face_recognition's
+    
+    public static void main(String[] args) {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 420; // a decision per sample: ~20k decisions
+        int checks = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Random random = new Random(1);
+        
+        int decisions = 0;
+        int converged = 0;
+        for (int session = 0; session < sessions; session++) {
+            // from samples that clearly agree to ones that clearly don't, with the bound somewhere in between
+            double noise = 0.004 + 0.016 * random.nextDouble();
+            double outlierChance = random.nextDouble() * 0.2;
+            double[] face = randomFace(random);
+            FingerprintAggregator incremental = new FingerprintAggregator();
+            CopyingAggregator copying = new CopyingAggregator();
+            for (int i = 0; i < MAX_SAMPLES; i++) {
+                double[] sample = withNoise(face, random.nextDouble() < outlierChance ? noise * 5 : noise, random);
+                incremental.add(sample);
+                copying.add(sample);
+                boolean decision = incremental.isConverged();
+                if (decision != copying.isConverged()) {
+                    throw new AssertionError("The checks disagree in session " + session + " after " + (i + 1)
+                            + " samples: the incremental one says " + decision);
+                }
+                decisions++;
+                if (decision) converged++;
+            }
+        }
+        System.out.printf("[FingerprintAggregatorBenchmark] Both checks made the same %d decisions (%d converged)%n",
+                decisions, converged);
+        
+        // twice, and only report the second round, so the JIT has had its go
+        for (int round = 0; round < 2; round++) {
+            for (int n = MIN_SAMPLES; n <= MAX_SAMPLES; n++) {
+                double[] face = randomFace(random);
+                FingerprintAggregator incremental = new FingerprintAggregator();
+                CopyingAggregator copying = new CopyingAggregator();
+                for (int i = 0; i < n; i++) {
+                    double[] sample = withNoise(face, 0.05, random); // far apart: never converges
+                    incremental.add(sample);
+                    copying.add(sample);
+                }
+                double incrementalUs = time(incremental::isConverged, checks);
+                double copyingUs = time(copying::isConverged, checks);
+                if (round == 1) {
+                    System.out.printf("[FingerprintAggregatorBenchmark] n = %2d: incremental %8.2f us, copying %8.2f "
+                            + "us, %5.1fx%n", n, incrementalUs, copyingUs, copyingUs / incrementalUs);
+                }
+            }
+        }
+    }
+    
+    /** Mean microseconds per check */
+    private static double time(Check check, int checks) {
+        boolean any = false;
+        long start = System.nanoTime();
+        for (int i = 0; i < checks; i++) {
+            any |= check.isConverged();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (any) throw new AssertionError("samples this far apart shouldn't converge");
+        return elapsed / 1000.0 / checks;
+    }
+    
+    private interface Check {
+        boolean isConverged();
+    }
+    
+    private static double[] randomFace(Random random) {
+        double[] face = new double[DIMENSIONS];
+        for (int j = 0; j < DIMENSIONS; j++) {
+            face[j] = random.nextGaussian() * COMPONENT_SPREAD;
+        }
+        return face;
+    }
+    
+    private static double[] withNoise(double[] face, double noise, Random random) {
+        double[] sample = new double[DIMENSIONS];
+        for (int j = 0; j < DIMENSIONS; j++) {
+            sample[j] = face[j] + random.nextGaussian() * noise;
+        }
+        return sample;
+    }
+    
+    /** The check as it was before FingerprintAggregator kept running sums, less its printing */
+    private static class CopyingAggregator {
+        
+        private final List<double[]> fingerprints = new ArrayList<>();
+        
+        void add(double[] fingerprint) {
+            fingerprints.add(fingerprint);
+        }
+        
+        boolean isConverged() {
+            return fingerprints.size() > 2 && !tooMuchUncertainty(fingerprints);
+        }
+        
+        private static boolean tooMuchUncertainty(List<double[]> fingerprints) {
+            if (okUncertaintyPartial(fingerprints)) return false;
+            int n = fingerprints.size();
+            for (int i = 0; i < n; ++i) {
+                List<double[]> cut = new ArrayList<>(fingerprints);
+                //noinspection SuspiciousListRemoveInLoop
+                cut.remove(i);
+                if (okUncertaintyPartial(cut)) return false;
+            }
+            return true;
+        }
+        
+        private static boolean okUncertaintyPartial(List<double[]> fingerprints) {
+            double variance = 0;
+            int n = fingerprints.size();
+            for (int j = 0; j < DIMENSIONS; j++) {
+                double sum = 0;
+                double sumsq = 0;
+                for (double[] fingerprint : fingerprints) {
+                    double v = fingerprint[j];
+                    sum += v;
+                    sumsq += v * v;
+                }
+                sum /= n;
+                sumsq /= n;
+                sum = sum * sum;
+                variance += sumsq - sum;
+            }
+            return variance <= 0.01 + 0.001 * n;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,158 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Measures how many user records a second BatchWriter creates for a few batch sizes and in-flight limits, against a
+ * stand-in for the DB: each write takes a round trip, plus the time to send its bytes over a link that writes share.
+ * The records are plain maps shaped like UserRecord.getFields, with a fingerprint and a few prescriptions each, and
+ * each is written with its user index entry, like DbUserDao.createAll. One record per write, one write at a time, is
+ * how records were created before; writing each field on its own is how the Python server creates them.
+ * Run it with: gradle bulkWriteBenchmark --args="[records] [round trip ms] [link KB/s]"
+ */
+public class BulkWriteBenchmark {
+    
+    private static final int PRESCRIPTIONS = 3;
+    private static final int[][] SETTINGS = { { 1, 1 }, { 1, 4 }, { 50, 4 }, { 500, 1 }, { 500, 4 }, { 500, 16 } };
+    
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        long roundTripMs = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        long bytesPerSecond = (args.length > 2 ? Long.parseLong(args[2]) : 2_000) * 1000;
+        
+        Random random = new Random(1);
+        List<Map<String, Object>> records = new ArrayList<>(count);
+        for (int id = 0; id < count; id++) {
+            records.add(randomRecord(id, random));
+        }
+        
+        StandIn db = new StandIn(roundTripMs, bytesPerSecond);
+        try {
+            // the Python server's way, for a few records, since it's so slow
+            int few = Math.min(count, 100);
+            long start = System.nanoTime();
+            for (Map<String, Object> record : records.subList(0, few)) {
+                for (Map.Entry<String, Object> field : record.entrySet()) {
+                    db.writeNow(Map.of("arka/user/" + record.get("id") + "/" + field.getKey(), field.getValue()));
+                }
+            }
+            report("one field per write", few, start, 0);
+            
+            for (int[] setting : SETTINGS) {
+                int batchSize = setting[0];
+                int maxInFlight = setting[1];
+                int n = batchSize == 1 ? few * maxInFlight : count;
+                start = System.nanoTime();
+                int failed = writeAll(db, records.subList(0, n), batchSize, maxInFlight);
+                report(String.format("%d per write, %d at once", batchSize, maxInFlight), n, start, failed);
+            }
+            System.out.printf("[BulkWriteBenchmark] Stand-in DB holds %d paths after %d writes%n", db.data.size(),
+                    db.writes.get());
+        } finally {
+            db.scheduler.shutdownNow();
+        }
+    }
+    
+    private static int writeAll(StandIn db, List<Map<String, Object>> records, int batchSize, int maxInFlight)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger failed = new AtomicInteger();
+        BatchWriter<Map<String, Object>> writer = new BatchWriter<>(db, batchSize, maxInFlight, Runnable::run);
+        writer.writeAll(records, record -> {
+            Map<String, Object> paths = new HashMap<>();
+            paths.put("arka/user/" + record.get("id"), record);
+            paths.put("arka/userIndex/" + record.get("id"),
+                    Map.of("id", record.get("id"), "name", record.get("name"), "doctors", record.get("doctors")));
+            return paths;
+        }, (record, error) -> {
+            if (error != null) failed.incrementAndGet();
+        }, done::countDown);
+        done.await();
+        return failed.get();
+    }
+    
+    private static void report(String what, int count, long start, int failed) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("[BulkWriteBenchmark] %-22s %7d records in %6.2f s: %8.0f records/s, %d failed%n", what,
+                count, seconds, count / seconds, failed);
+    }
+    
+    private static Map<String, Object> randomRecord(int id, Random random) {
+        short[] fingerprint = new short[FingerprintCodec.DIMENSIONS];
+        for (int j = 0; j < fingerprint.length; j++) {
+            fingerprint[j] = FingerprintCodec.quantize(random.nextGaussian() * 0.09);
+        }
+        Map<String, Object> prescriptions = new HashMap<>();
+        for (int i = 0; i < PRESCRIPTIONS; i++) {
+            int din = 10_000_000 + random.nextInt(90_000_000);
+            long timestamp = 1_580_000_000_000L + random.nextInt(1_000_000_000);
+            prescriptions.put("DIN_" + din, Map.of("din", din, "type", "DIN #" + din, "timestamp", timestamp,
+                    "expires", timestamp + 7 * 24 * 60 * 60 * 1000));
+        }
+        
+        Map<String, Object> record = new HashMap<>();
+        record.put("id", id);
+        record.put("name", "Patient " + Integer.toString(random.nextInt(Integer.MAX_VALUE), 36));
+        record.put("doctors", List.of("Dr. " + Integer.toString(random.nextInt(1000), 36)));
+        record.put("prescriptions", prescriptions);
+        record.put("fingerprint", FingerprintCodec.encode(fingerprint));
+        record.put("fingerprint8", FingerprintCodec.encode8(fingerprint));
+        return Collections.unmodifiableMap(record);
+    }
+    
+    /** The stand-in DB: applies each update to a map once its bytes have gone over the link and a round trip */
+    private static class StandIn implements BatchWriter.Backend {
+        
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final Map<String, Object> data = new ConcurrentHashMap<>();
+        final AtomicInteger writes = new AtomicInteger();
+        private final long roundTripNanos;
+        private final long bytesPerSecond;
+        private long linkFreeAt = System.nanoTime(); // when the link's done sending what's been written so far
+        
+        StandIn(long roundTripMs, long bytesPerSecond) {
+            roundTripNanos = roundTripMs * 1_000_000;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+        
+        @Override
+        public void write(Map<String, Object> update, Consumer<String> done) {
+            long sendNanos = BatchWriter.estimateSize(update) * 1_000_000_000 / bytesPerSecond;
+            long delay;
+            synchronized (this) {
+                long now = System.nanoTime();
+                linkFreeAt = Math.max(linkFreeAt, now) + sendNanos;
+                delay = linkFreeAt + roundTripNanos - now;
+            }
+            scheduler.schedule(() -> {
+                for (Map.Entry<String, Object> path : update.entrySet()) {
+                    if (path.getValue() == null) data.remove(path.getKey());
+                    else data.put(path.getKey(), path.getValue());
+                }
+                writes.incrementAndGet();
+                done.accept(null);
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+        
+        /** Write the update and wait for it, like a blocking set() */
+        void writeNow(Map<String, Object> update) throws InterruptedException {
+            CountDownLatch done = new CountDownLatch(1);
+            write(update, error -> done.countDown());
+            done.await();
+        }
+        
+    }
+    
+}
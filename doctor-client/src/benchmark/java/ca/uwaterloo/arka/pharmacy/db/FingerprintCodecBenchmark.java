@@ -0,0 +1,125 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how many fingerprints a second FingerprintCodec encodes and decodes, and how many bytes it allocates for
+ * each, for decode (into a new array, and into a shared one), decodeAll, encode, encode8 and decode8. For comparison,
+ * it also decodes with the JDK's Base64 decoder (which the JIT makes very fast) and a ByteBuffer, which is quicker,
+ * but allocates a byte array and a buffer for every fingerprint on top of the result.
+ * The fingerprints are random 16-bit ones, encoded in the current version. Each is timed over a number of rounds, and
+ * the best round is reported, so that the JIT has had its go and a GC pause doesn't count.
+ * Run it with: gradle fingerprintCodecBenchmark --args="[fingerprints] [rounds]"
+ */
+public class FingerprintCodecBenchmark {
+    
+    private static final int DIMENSIONS = FingerprintCodec.DIMENSIONS;
+    
+    private static long sink = 0; // so the JIT can't drop the work
+    
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        
+        Random random = new Random(1);
+        short[] fingerprints = new short[count * DIMENSIONS];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = (short) random.nextInt(1 << 16);
+        }
+        List<String> encoded = FingerprintCodec.encodeAll(fingerprints, count);
+        List<String> encoded8 = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            encoded8.add(FingerprintCodec.encode8(Arrays.copyOfRange(fingerprints, i * DIMENSIONS,
+                    (i + 1) * DIMENSIONS)));
+        }
+        
+        // both decoders have to agree before it's worth timing them
+        short[] target = new short[count * DIMENSIONS];
+        FingerprintCodec.decodeAll(encoded, target);
+        if (!Arrays.equals(target, fingerprints)) {
+            throw new AssertionError("decodeAll didn't give back what was encoded");
+        }
+        for (int i = 0; i < count; i++) {
+            if (!Arrays.equals(jdkDecode(encoded.get(i)), Arrays.copyOfRange(fingerprints, i * DIMENSIONS,
+                    (i + 1) * DIMENSIONS))) {
+                throw new AssertionError("The JDK decoder disagrees on fingerprint " + i);
+            }
+        }
+        
+        run("decode, new array", count, rounds, () -> {
+            for (String fingerprint : encoded) {
+                sink += FingerprintCodec.decode(fingerprint)[0];
+            }
+        });
+        run("decode, shared array", count, rounds, () -> {
+            for (int i = 0; i < count; i++) {
+                FingerprintCodec.decode(encoded.get(i), target, i * DIMENSIONS);
+            }
+            sink += target[0];
+        });
+        run("decodeAll", count, rounds, () -> sink += FingerprintCodec.decodeAll(encoded, target).cardinality());
+        run("JDK Base64 decode", count, rounds, () -> {
+            for (String fingerprint : encoded) {
+                sink += jdkDecode(fingerprint)[0];
+            }
+        });
+        run("encode", count, rounds, () -> {
+            for (int i = 0; i < count; i++) {
+                sink += FingerprintCodec.encode(fingerprints, i * DIMENSIONS).length();
+            }
+        });
+        short[] single = Arrays.copyOf(fingerprints, DIMENSIONS);
+        run("encode8", count, rounds, () -> {
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(fingerprints, i * DIMENSIONS, single, 0, DIMENSIONS);
+                sink += FingerprintCodec.encode8(single).length();
+            }
+        });
+        byte[] components = new byte[count * DIMENSIONS];
+        run("decode8", count, rounds, () -> {
+            for (int i = 0; i < count; i++) {
+                sink += (long) FingerprintCodec.decode8(encoded8.get(i), components, i * DIMENSIONS);
+            }
+        });
+        System.out.println("[FingerprintCodecBenchmark] (checksum " + sink + ")");
+    }
+    
+    /** The version 1 fingerprint decoded the usual way, with the JDK's decoder and a ByteBuffer */
+    private static short[] jdkDecode(String serialized) {
+        ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(serialized)).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.get(); // the version
+        short[] fingerprint = new short[DIMENSIONS];
+        bytes.asShortBuffer().get(fingerprint);
+        return fingerprint;
+    }
+    
+    private static void run(String name, int count, int rounds, Runnable pass) {
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int round = 0; round < rounds; round++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            pass.run();
+            best = Math.min(best, System.nanoTime() - start);
+            allocated = allocatedBytes() - bytesBefore;
+        }
+        String bytesPerFingerprint = allocatedBytes() < 0 ? "?" : String.valueOf(allocated / count);
+        System.out.printf("[FingerprintCodecBenchmark] %-22s %6.2fM fingerprints/s, %s bytes allocated each%n", name,
+                count / (best / 1e9) / 1e6, bytesPerFingerprint);
+    }
+    
+    /** The bytes this thread has allocated so far, or -1 if the JVM can't tell */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+}
@@ -0,0 +1,82 @@
+package ca.uwaterloo.arka.pharmacy.face;
+
+import org.bytedeco.javacv.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures how many frames a second FrameRing takes, and how many bytes it copies for each, for a few camera
+ * resolutions, without a camera or the python worker. The frames are synthetic 8-bit BGR ones of random pixels, laid
+ * out by Frame itself, so they're copied row by row (by stride) just like grabbed ones. Like the capture pipeline,
+ * each frame is written into a free slot, and the slot is released once the "worker" has read a pixel of it, with a
+ * few slots in flight at a time.
+ * Each resolution is run twice, and only the second run is reported, so that the JIT has had its go.
+ * Run it with: gradle frameRingBenchmark --args="[frames per resolution] [slots]"
+ */
+public class FrameRingBenchmark {
+    
+    private static final int[][] RESOLUTIONS = { { 640, 480 }, { 1280, 720 }, { 1920, 1080 } };
+    private static final int DISTINCT_FRAMES = 4;
+    
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int slots = args.length > 1 ? Integer.parseInt(args[1]) : 5; // what CapturePipeline makes for 2 workers
+        Random random = new Random(1);
+        long checksum = 0;
+        
+        for (int[] resolution : RESOLUTIONS) {
+            int width = resolution[0];
+            int height = resolution[1];
+            Frame[] frames = new Frame[DISTINCT_FRAMES];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = randomFrame(width, height, random);
+            }
+            
+            for (int round = 0; round < 2; round++) {
+                try (FrameRing ring = new FrameRing(slots, width, height)) {
+                    int[] inFlight = new int[slots - 1]; // one slot spare, so a write never finds the ring full
+                    int oldest = 0;
+                    int held = 0;
+                    long start = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        if (held == inFlight.length) {
+                            // the worker's done with the oldest frame
+                            checksum += ring.getPixels(inFlight[oldest]).get(0);
+                            ring.release(inFlight[oldest]);
+                            oldest = (oldest + 1) % inFlight.length;
+                            held--;
+                        }
+                        int slot = ring.write(frames[i % frames.length]);
+                        if (slot < 0) throw new AssertionError("The ring was full with a slot to spare");
+                        inFlight[(oldest + held) % inFlight.length] = slot;
+                        held++;
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    if (round == 1) {
+                        System.out.printf("[FrameRingBenchmark] %4dx%-4d %8.0f frames/s, %d bytes copied per frame "
+                                + "(%.0f MB/s)%n", width, height, count / seconds,
+                                ring.getBytesCopied() / ring.getFramesWritten(), ring.getBytesCopied() / seconds / 1e6);
+                    }
+                }
+            }
+        }
+        System.out.println("[FrameRingBenchmark] (checksum " + checksum + ")");
+    }
+    
+    /** A frame of random pixels */
+    private static Frame randomFrame(int width, int height, Random random) {
+        Frame frame = new Frame(width, height, Frame.DEPTH_UBYTE, 3);
+        ByteBuffer pixels = (ByteBuffer) frame.image[0];
+        byte[] row = new byte[frame.imageStride];
+        for (int y = 0; y < height; y++) {
+            random.nextBytes(row);
+            pixels.position(y * frame.imageStride);
+            pixels.put(row, 0, Math.min(row.length, pixels.remaining()));
+        }
+        pixels.rewind();
+        return frame;
+    }
+    
+}
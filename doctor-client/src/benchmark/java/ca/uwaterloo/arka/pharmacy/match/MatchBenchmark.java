@@ -0,0 +1,144 @@
+package ca.uwaterloo.arka.pharmacy.match;
+
+import ca.uwaterloo.arka.pharmacy.db.FingerprintCodec;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how often the 8-bit index and the HNSW index (for a range of efSearch values) find the true nearest
+ * fingerprint (recall@1), and how long their queries take, against exact search with FingerprintIndex. Also
+ * reports how much smaller the 8-bit form is.
+ * The fingerprints are synthetic: random "faces" with components spread like real face_recognition encodings, and
+ * queries that are one of those faces plus a bit of noise, like a second photo of the same person. Like real encodings,
+ * the faces vary along far fewer directions than they have dimensions: they're random mixes of a fixed set of
+ * "features". (Independent random components in all 128 dimensions are a much harder case for any graph index, and
+ * nothing like what faces look like.)
+ * Run it with: gradle matchBenchmark --args="[fingerprints] [queries]"
+ */
+public class MatchBenchmark {
+    
+    private static final int DIMENSIONS = FingerprintIndex.DIMENSIONS;
+    private static final double COMPONENT_SPREAD = 0.09; // standard deviation of an encoding's components
+    private static final int FEATURES = 32;
+    private static final double QUERY_NOISE = 0.02; // per component, ~0.23 apart overall: clearly the same person
+    private static final int[] EF_SEARCHES = { 16, 32, 64, 128, 256 };
+    
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        Random random = new Random(1);
+        double[][] features = new double[FEATURES][DIMENSIONS];
+        for (double[] feature : features) {
+            for (int j = 0; j < DIMENSIONS; j++) {
+                feature[j] = random.nextGaussian() * COMPONENT_SPREAD / Math.sqrt(FEATURES);
+            }
+        }
+        
+        FingerprintIndex exact = new FingerprintIndex();
+        QuantizedFingerprintIndex quantized = new QuantizedFingerprintIndex();
+        HnswIndex hnsw = new HnswIndex();
+        short[][] faces = new short[count][];
+        long start = System.nanoTime();
+        for (int id = 0; id < count; id++) {
+            faces[id] = randomFace(features, random);
+            exact.put(id, faces[id]);
+            quantized.put(id, faces[id]);
+        }
+        System.out.printf("[MatchBenchmark] Exact index of %d built in %.1f s%n", count, seconds(start));
+        start = System.nanoTime();
+        for (int id = 0; id < count; id++) {
+            hnsw.put(id, faces[id]);
+        }
+        System.out.printf("[MatchBenchmark] HNSW index of %d built in %.1f s%n", count, seconds(start));
+        
+        short[][] queries = new short[queryCount][];
+        for (int i = 0; i < queryCount; i++) {
+            queries[i] = withNoise(faces[random.nextInt(count)], random);
+        }
+        
+        // twice, and only time the second round, so the JIT has had its go
+        int[] truth = new int[queryCount];
+        long[] latencies = new long[queryCount];
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < queryCount; i++) {
+                long queryStart = System.nanoTime();
+                truth[i] = exact.nearest(queries[i], 1).get(0).id;
+                latencies[i] = System.nanoTime() - queryStart;
+            }
+        }
+        report("exact", queryCount, queryCount, latencies);
+        
+        int hits = 0;
+        for (int round = 0; round < 2; round++) {
+            hits = 0;
+            for (int i = 0; i < queryCount; i++) {
+                long queryStart = System.nanoTime();
+                List<FingerprintIndex.Match> matches = quantized.nearest(queries[i], 1);
+                latencies[i] = System.nanoTime() - queryStart;
+                if (matches.get(0).id == truth[i]) hits++;
+            }
+        }
+        report("8-bit", hits, queryCount, latencies);
+        System.out.printf("[MatchBenchmark] 8-bit form: %d Base64 characters (16-bit: %d), %d bytes in memory (16-bit: "
+                + "%d)%n", FingerprintCodec.encode8(faces[0]).length(), FingerprintCodec.encode(faces[0]).length(),
+                DIMENSIONS + 4, DIMENSIONS * 2);
+        
+        for (int efSearch : EF_SEARCHES) {
+            hnsw.setEfSearch(efSearch);
+            for (int round = 0; round < 2; round++) {
+                hits = 0;
+                for (int i = 0; i < queryCount; i++) {
+                    long queryStart = System.nanoTime();
+                    List<FingerprintIndex.Match> matches = hnsw.nearest(queries[i], 1);
+                    latencies[i] = System.nanoTime() - queryStart;
+                    if (!matches.isEmpty() && matches.get(0).id == truth[i]) hits++;
+                }
+            }
+            report("hnsw ef=" + efSearch, hits, queryCount, latencies);
+        }
+    }
+    
+    private static short[] randomFace(double[][] features, Random random) {
+        double[] face = new double[DIMENSIONS];
+        for (double[] feature : features) {
+            double weight = random.nextGaussian();
+            for (int j = 0; j < DIMENSIONS; j++) {
+                face[j] += weight * feature[j];
+            }
+        }
+        
+        short[] packed = new short[DIMENSIONS];
+        for (int j = 0; j < DIMENSIONS; j++) {
+            packed[j] = toShort(face[j]);
+        }
+        return packed;
+    }
+    
+    private static short[] withNoise(short[] face, Random random) {
+        short[] noisy = new short[DIMENSIONS];
+        for (int j = 0; j < DIMENSIONS; j++) {
+            noisy[j] = toShort(face[j] / 32768.0 + random.nextGaussian() * QUERY_NOISE);
+        }
+        return noisy;
+    }
+    
+    private static short toShort(double component) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(component * 32768)));
+    }
+    
+    private static void report(String name, int hits, int queryCount, long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0) / 1000;
+        double p99 = sorted[(int) (sorted.length * 0.99)] / 1000.0;
+        System.out.printf("[MatchBenchmark] %-12s recall@1 %.3f, mean %.0f us, p99 %.0f us%n", name,
+                (double) hits / queryCount, mean, p99);
+    }
+    
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+    
+}
@@ -1,10 +1,14 @@
 package ca.uwaterloo.arka.pharmacy;
 
+import ca.uwaterloo.arka.pharmacy.capture.CameraService;
+import ca.uwaterloo.arka.pharmacy.capture.CapturePipeline;
+import ca.uwaterloo.arka.pharmacy.capture.LivePreview;
+import ca.uwaterloo.arka.pharmacy.db.FingerprintCodec;
 import ca.uwaterloo.arka.pharmacy.db.UserDao;
 import ca.uwaterloo.arka.pharmacy.db.UserRecord;
+import ca.uwaterloo.arka.pharmacy.match.FingerprintIndex;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.fxml.FXML;
 import javafx.scene.Node;
 import javafx.scene.control.Alert;
@@ -14,30 +18,15 @@ import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import javafx.scene.control.cell.TextFieldListCell;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.text.Text;
 import javafx.util.converter.IntegerStringConverter;
-import org.bytedeco.javacv.Frame;
-import org.bytedeco.javacv.FrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
-import org.bytedeco.javacv.OpenCVFrameGrabber;
-import org.bytedeco.opencv.opencv_core.IplImage;
 
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Scanner;
 import java.util.stream.Collectors;
 
-import static org.bytedeco.opencv.helper.opencv_imgcodecs.cvSaveImage;
-
 /**
  * The controller class for the "detail" pane on the right side. Controls editing and saving records.
  * Note: when we switch to editing mode, the old data is copied into the editing components, which are not bound
@@ -50,6 +39,9 @@ import static org.bytedeco.opencv.helper.opencv_imgcodecs.cvSaveImage;
 // TODO - prevent having multiple prescriptions of same ID
 public class DetailController extends PaneController {
     
+    // how close (as a face_recognition distance) a new face may be to another patient's before we warn about it
+    private static final long DUPLICATE_DISTANCE = FingerprintIndex.squaredDistance(0.5);
+    
     @FXML private Node detailPaneRoot;
     
     @FXML private Button editBtn;
@@ -103,6 +95,7 @@ public class DetailController extends PaneController {
             }
             
             // Unbind everything from the last one
+            editBtn.disableProperty().unbind();
             nameText.textProperty().unbind();
             doctorsText.textProperty().unbind();
             prescriptionIdText.textProperty().unbind();
@@ -115,12 +108,17 @@ public class DetailController extends PaneController {
             return;
         }
         
+        // Lists only load the name and doctors; fetch the rest, and don't allow editing until it's here
+        editBtn.disableProperty().bind(record.detailsLoadedProperty().not());
+        UserDao.newDao().loadDetails(record, () -> {}, errMsg -> {
+            System.err.println("[DetailController] Could not load the record of patient: " + record.getName());
+            System.err.println(errMsg);
+        });
+        
         // Bind all the fields
         nameText.textProperty().bind(record.nameProperty());
         fingerprintVisual.imageProperty().bind(Bindings.createObjectBinding(
-                () -> (record.getFingerprint() == null || record.getFingerprint().length() < 10) // real is >10 chars 
-                        ? null : generateFaceFingerprintImage(deserializeFingerprint(record.getFingerprint())),
-                record.fingerprintProperty()));
+                () -> FingerprintRenderer.render(record.getFingerprint()), record.fingerprintProperty()));
         
         doctorsText.textProperty().bind(Bindings.createStringBinding(
                 () -> String.join(", ", record.getDoctors()), record.doctorsProperty()));
@@ -134,7 +132,7 @@ public class DetailController extends PaneController {
     
     @FXML
     public void edit() {
-        if (record == null || editing) return;
+        if (record == null || editing || !record.isDetailsLoaded()) return;
         
         // copy the record stuff into the editing stuff
         nameField.setText(record.getName());
@@ -245,18 +243,33 @@ public class DetailController extends PaneController {
     @FXML
     private void save() {
         if (record == null || !editing) return;
+        if (!confirmNotDuplicate()) return;
         
-        // update the record (and therefore the displaying stuff) with the editing data
-        record.setName(nameField.getText());
+        // update the record (and therefore the displaying stuff) with the editing data, only touching what's changed,
+        // since whatever's marked as changed is written again (and checked for conflicts)
+        if (!record.getName().equals(nameField.getText())) record.setName(nameField.getText());
         
-        record.getDoctors().clear();
-        for (String doctorName : doctorsList.getItems()) {
-            record.getDoctors().add(doctorName);
+        if (!record.getDoctors().equals(doctorsList.getItems())) {
+            record.doctorsProperty().setAll(doctorsList.getItems());
         }
         
-        record.getPrescriptionList().clear();
+        // keep the prescriptions that are still there as they are, rather than making new ones with new timestamps
+        List<UserRecord.PrescriptionRecord> unused = new ArrayList<>(record.getPrescriptionList());
+        List<UserRecord.PrescriptionRecord> prescriptions = new ArrayList<>();
         for (int prescriptionId : prescriptionIdList.getItems()) {
-            record.getPrescriptionList().add(new UserRecord.PrescriptionRecord(prescriptionId));
+            UserRecord.PrescriptionRecord prescription = null;
+            for (Iterator<UserRecord.PrescriptionRecord> it = unused.iterator(); it.hasNext(); ) {
+                UserRecord.PrescriptionRecord existing = it.next();
+                if (existing.getDin() == prescriptionId) {
+                    prescription = existing;
+                    it.remove();
+                    break;
+                }
+            }
+            prescriptions.add(prescription != null ? prescription : new UserRecord.PrescriptionRecord(prescriptionId));
+        }
+        if (!record.getPrescriptionList().equals(prescriptions)) {
+            record.prescriptionsProperty().setAll(prescriptions);
         }
         
         // Publish it
@@ -264,12 +277,11 @@ public class DetailController extends PaneController {
         dao.update(record, () -> {}, errMsg -> {
             System.err.println("[DetailController] Could not update record of patient: " + record.getName());
             System.err.println(errMsg);
-
+            
             // let the user know with an alert
             Alert alert = new Alert(Alert.AlertType.ERROR,
-                    "Could not publish changes to database. Your changes are saved locally but will reset upon " +
-                    "restarting the application, and will not appear in the pharmacy machine. Click 'save' again to " +
-                    "retry publishing changes.");
+                    "Could not save changes on this computer. They will still be published to the database while " +
+                    "the application is open, but will be lost if it's closed first. Click 'save' again to retry.");
             alert.show();
         });
     }
@@ -281,75 +293,38 @@ public class DetailController extends PaneController {
         captureFaceFingerprintButton.setVisible(false);
         updateInstructions("Capturing face fingerprint: please hold still...");
         
+        cameraView.setSmooth(true);
+        LivePreview preview = new LivePreview(CameraService.getInstance(), cameraView);
         Thread imageThread = new Thread(() -> {
             // new thread so it doesn't block the UI thread
-            FrameGrabber grabber = new OpenCVFrameGrabber(0);
-            OpenCVFrameConverter.ToIplImage converter = new OpenCVFrameConverter.ToIplImage();
             try {
-                grabber.start();
-                List<double[]> fingerprints = new ArrayList<>();
-                while (fingerprints.size() <= 2 || tooMuchUncertainty(fingerprints)) {
-                    Frame frame = grabber.grab();
-                    IplImage image = converter.convert(frame);
-                    
-                    // save to the temp directory for the python script to access
-                    String imgFilename = Paths.get(System.getProperty("java.io.tmpdir"), "face-fingerprint.png")
-                            .toString();
-                    System.out.println("[DetailController] Successfully got an image: saving to " + imgFilename);
-                    cvSaveImage(imgFilename, image);
-                    
-                    // display the user's pretty face
-                    cameraView.setImage(new Image("file://" + imgFilename));
-                    
-                    // execute the python script
-                    String pythonCommand = "python3 ./fingerprint.py " + imgFilename;
-                    Process pythonProcess = Runtime.getRuntime().exec(pythonCommand);
-                    
-                    // pipe error logging from python script to System.out
-                    InputStream pythonError = pythonProcess.getErrorStream();
-                    InputStreamReader isReader = new InputStreamReader(pythonError);
-                    BufferedReader reader = new BufferedReader(isReader);
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        System.out.println("[fingerprint.py] " + line);
-                    }
-                    
-                    int exit = pythonProcess.waitFor();
-                    System.out.println("[DetailController] Python script exited with status " + exit);
-                    if (exit != 0) {
-                        // crap it failed
-                        Platform.runLater(() -> {
-                            cameraView.setImage(null);
-                            updateInstructions("Failed to generate a fingerprint.");
-                            Alert error = new Alert(Alert.AlertType.ERROR,
-                                "Error: Failed to generate fingerprint data. Please ensure that a face is visible " +
-                                "to the webcam, and that Python 3.7 or above is installed.");
-                            error.show();
-                        });
-                        return;
-                    }
-                    
-                    // get the fingerprint from the output
-                    InputStream pythonOutput = pythonProcess.getInputStream();
-                    Scanner scanner = new Scanner(pythonOutput);
-                    double[] fingerprint = new double[128];
-                    for (int i = 0; i < 128; i++) {
-                        fingerprint[i] = scanner.nextDouble();
-                    }
-                    scanner.close();
-                    
-                    fingerprints.add(fingerprint);
-                    
-                    Platform.runLater(() -> updateInstructions("Captured " + fingerprints.size()
-                            + " sample(s), please hold still..."));
-                    System.out.println("number of fingerprints kept = " + fingerprints.size());
+                preview.start();
+                CapturePipeline pipeline = new CapturePipeline(CameraService.getInstance(),
+                        CapturePipeline.defaultWorkerCount(),
+                        samples -> Platform.runLater(() -> updateInstructions("Captured " + samples
+                                + " sample(s), please hold still...")));
+                double[] fingerprint = pipeline.run();
+                if (fingerprint == null) {
+                    // crap it failed
+                    Platform.runLater(() -> {
+                        cameraView.setImage(null);
+                        updateInstructions("Failed to generate a fingerprint.");
+                        Alert error = new Alert(Alert.AlertType.ERROR,
+                            "Error: Failed to generate fingerprint data. Please ensure that a face is visible " +
+                            "to the webcam, and that Python 3.7 or above is installed.");
+                        error.show();
+                    });
+                    return;
                 }
-                double[] fingerprint = meanFingerprint(fingerprints);
                 
                 // use it as the fingerprint
+                short[] quantized = new short[FingerprintCodec.DIMENSIONS];
+                FingerprintCodec.quantize(fingerprint, quantized);
+                String encoded = FingerprintCodec.encode(quantized);
                 Platform.runLater(() -> {
-                    setFingerprint(serializeFingerprint(fingerprint));
-                    cameraView.setImage(generateFaceFingerprintImage(fingerprint));
+                    setFingerprint(encoded);
+                    cameraView.setSmooth(false);
+                    cameraView.setImage(FingerprintRenderer.render(encoded));
                     cameraView.setFitWidth(100);
                     updateInstructions("Successfully generated face fingerprint, be sure to save.");
                 });
@@ -362,123 +337,44 @@ public class DetailController extends PaneController {
                     "this application has access to it, then try again.");
                 error.show();
             } finally {
+                preview.stop();
                 Platform.runLater(() -> {
                     // always make it visible again
                     captureFaceFingerprintButton.setManaged(true);
                     captureFaceFingerprintButton.setVisible(true);
                 });
-                try {
-                    grabber.stop();
-                } catch (Exception e) {
-                    System.err.println("[DetailController] Exception in stopping grabber");
-                    e.printStackTrace();
-                }
             }
         });
         imageThread.setDaemon(true);
         imageThread.start();
     }
     
-    private void updateInstructions(String instructions) {
-        captureInstructions.setText(instructions);
-    }
-    
-    private void setFingerprint(String fingerprint) {
-        record.setFingerprint(fingerprint);
-    }
-    
-    private String serializeFingerprint(double[] fingerprint) {
-        // map from [-1, 1] to [-2^15, 2^15 - 1]
-        byte[] packed = new byte[256];
-        final double scale = 32767.999999999996;
-        for (int i = 0; i < 128; i++) {
-            int mapped = (int) Math.floor(scale * fingerprint[i]);
-            packed[2*i  ] = (byte) (mapped);
-            packed[2*i+1] = (byte) (mapped>>8);
-        }
-        return Base64.getEncoder().encodeToString(packed);
-    }
-    
-    private double[] deserializeFingerprint(String serialized) {
-        // map from [-2^15, 2^15 - 1] to [-1, 1]
-        byte[] packed = Base64.getDecoder().decode(serialized);
-        double[] res = new double[128];
-        final double scale = 32767.999999999996;
-        for (int i = 0; i < 128; i++) {
-            short bit16 = (short) ((int) packed[2*i] + ((int) packed[2*i+1]<<8));
-            res[i] = (double) bit16 / scale;
-        }
-        return res;
-    }
-    
-    private double[] meanFingerprint(List<double[]> fingerprints) {
-        double[] result = new double[128];
-        int n = fingerprints.size();
-        if (n == 0) return result;
-        for (double[] f : fingerprints) {
-            for (int j = 0; j < 128; j++) {
-                result[j] += f[j];
-            }
-        }
-        for(int j = 0; j < 128; j++){
-            result[j] /= n;
-        }
-        return result;
-    }
-    
-    private boolean tooMuchUncertainty(List<double[]> fingerprints) {
-        if (okUncertaintyPartial(fingerprints)) return false;
-        int n = fingerprints.size();
-        for (int i=0;i<n;++i) {
-            List<double[]> cut = new ArrayList<>(fingerprints);
-            //noinspection SuspiciousListRemoveInLoop
-            cut.remove(i);
-            if (okUncertaintyPartial(cut)) return false;
+    /**
+     * Warn if the record's face looks like another patient's. Return whether to go ahead and save.
+     */
+    private boolean confirmNotDuplicate() {
+        short[] fingerprint = FingerprintCodec.decode(record.getFingerprint());
+        if (fingerprint == null) return true;
+        
+        for (FingerprintIndex.Match match : UserDao.fingerprintMatcher().nearest(fingerprint, 2, DUPLICATE_DISTANCE)) {
+            if (match.id == record.id) continue;
+            
+            UserRecord other = getListController().findRecord(match.id);
+            String name = other == null ? "patient #" + match.id : other.getName();
+            Alert alert = new Alert(Alert.AlertType.CONFIRMATION, "This face looks very similar to that of " + name
+                    + ". Are you sure this is a different patient? Click OK to save anyway.");
+            if (!alert.showAndWait().filter(response -> response == ButtonType.OK).isPresent()) return false;
+            break;
         }
         return true;
     }
     
-    private boolean okUncertaintyPartial(List<double[]> fingerprints) {
-        double variance = 0;
-        int n = fingerprints.size();
-        for(int j = 0; j < 128; j++) {
-            double sum = 0;
-            double sumsq = 0;
-            for (double[] fingerprint : fingerprints) {
-                double v = fingerprint[j];
-                sum += v;
-                sumsq += v * v;
-            }
-            sum /= n;
-            sumsq /= n;
-            sum = sum * sum;
-            double contrib = sumsq - sum;
-            variance += contrib;
-        }
-        System.out.println("[DetailController] variance = " + variance);
-        double bound = 0.01 + 0.001 * n;
-        return variance <= bound;
+    private void updateInstructions(String instructions) {
+        captureInstructions.setText(instructions);
     }
     
-    private Image generateFaceFingerprintImage(double[] fingerprint) {
-        int scale = 16;
-        BufferedImage image = new BufferedImage(8*scale, 8*scale, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = (Graphics2D)image.getGraphics();
-        for (int i = 0; i < 64; i++) {
-            int x = i % 8;
-            int y = i / 8;
-            double u = fingerprint[2*i  ];
-            double v = fingerprint[2*i+1];
-            u = Math.tanh(u*10); // exaggerate extreme values
-            v = Math.tanh(v*10);
-            final double R = 0.3, G = 0.15, B = 0.5;
-            int r = (int) (127 + 127 * R * u);
-            int g = (int) (127 + 127 * G * v);
-            int b = (int) (127 + 127 * B * (-u-v));
-            graphics.setColor(new Color(r, g, b));
-            graphics.fillRect(x*scale, y*scale, scale, scale);
-        }
-        return SwingFXUtils.toFXImage(image, null);
+    private void setFingerprint(String fingerprint) {
+        record.setFingerprint(fingerprint);
     }
     
 }
@@ -1,39 +1,63 @@
 package ca.uwaterloo.arka.pharmacy;
 
+import ca.uwaterloo.arka.pharmacy.capture.CameraService;
 import ca.uwaterloo.arka.pharmacy.db.UserDao;
+import ca.uwaterloo.arka.pharmacy.face.EmbeddingWorker;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.stage.Stage;
 
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The main class. Boots JavaFX, initializes the main scene, and initializes database connection.
+ * Those happen at the same time, along with reading the patients saved on this computer last time, so the window
+ * can show them without waiting for the database; it catches up with the database once it's connected.
  */
 public class DoctorClient extends Application {
     
     @Override
     public void start(Stage primaryStage) throws Exception {
-        // Initialize the database connection
+        StartupTimer.start();
+        
+        // Initialize the database connection in the background; anything that needs it waits for it
         UserDao dao = UserDao.newDao();
-        try {
-            dao.initialize();
-        } catch (IOException e) {
-            // this is bad - can't access database which is the whole point!
-            Alert error = new Alert(Alert.AlertType.ERROR,
-                    "Error: could not access database. Check your internet connection and relaunch the application. " +
-                    "This application will shut down.");
-            error.showAndWait();
-            throw e; // don't do anything
-        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                dao.initialize();
+                StartupTimer.mark("Firebase initialized");
+            } catch (Exception e) {
+                e.printStackTrace();
+                Platform.runLater(() -> {
+                    // this is bad - can't access database which is the whole point!
+                    Alert error = new Alert(Alert.AlertType.ERROR,
+                            "Error: could not access database. Check your internet connection and relaunch the " +
+                            "application. This application will shut down.");
+                    error.showAndWait();
+                    Platform.exit();
+                });
+            }
+        });
+        UserDao.preload().thenRun(() -> StartupTimer.mark("Saved patients read"));
         
         FXMLLoader loader = new FXMLLoader(getClass().getResource("MainScene.fxml"));
         Scene scene = new Scene(loader.load());
+        StartupTimer.mark("Main scene loaded");
         primaryStage.setTitle("Doctor's cabinet - Smart Pharmacy");
         primaryStage.setScene(scene);
         primaryStage.show();
+        StartupTimer.showing(scene);
+    }
+    
+    @Override
+    public void stop() {
+        // don't leave the camera open or the python workers running after we're gone
+        CameraService.shutdownInstance();
+        EmbeddingWorker.shutdownInstances();
+        UserDao.shutdown();
     }
     
     public static void main(String[] args) {
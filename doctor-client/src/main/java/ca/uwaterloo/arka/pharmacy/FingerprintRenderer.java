@@ -0,0 +1,68 @@
+package ca.uwaterloo.arka.pharmacy;
+
+import ca.uwaterloo.arka.pharmacy.db.FingerprintCodec;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Draws face fingerprints as an 8x8 grid of colours, one pixel per pair of components. Show the images in an
+ * ImageView with smoothing off so the cells stay crisp at any size.
+ * Images are cached by fingerprint string, least recently used first out, so showing the same fingerprint again
+ * (a patient card, then the detail pane) costs a map lookup. Thread-safe.
+ */
+final class FingerprintRenderer {
+    
+    private static final int SIZE = 8;
+    private static final int CACHE_SIZE = 512;
+    
+    // exaggerate extreme values, then weight the channels
+    private static final double CONTRAST = 10;
+    private static final double R = 0.3, G = 0.15, B = 0.5;
+    
+    private static final Map<String, Image> cache = new LinkedHashMap<String, Image>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    
+    private FingerprintRenderer() {}
+    
+    /** Return the image of the given encoded fingerprint, or null if it isn't a valid fingerprint */
+    static Image render(String fingerprint) {
+        if (fingerprint == null || fingerprint.isEmpty()) return null;
+        synchronized (cache) {
+            Image image = cache.get(fingerprint);
+            if (image != null) return image;
+        }
+        
+        short[] decoded = FingerprintCodec.decode(fingerprint);
+        if (decoded == null) return null;
+        Image image = render(decoded);
+        synchronized (cache) {
+            cache.put(fingerprint, image);
+        }
+        return image;
+    }
+    
+    private static Image render(short[] fingerprint) {
+        int[] pixels = new int[SIZE * SIZE];
+        for (int i = 0; i < pixels.length; i++) {
+            double u = Math.tanh(FingerprintCodec.dequantize(fingerprint[2*i  ]) * CONTRAST);
+            double v = Math.tanh(FingerprintCodec.dequantize(fingerprint[2*i+1]) * CONTRAST);
+            int r = (int) (127 + 127 * R * u);
+            int g = (int) (127 + 127 * G * v);
+            int b = (int) (127 + 127 * B * (-u-v));
+            pixels[i] = 0xFF000000 | r << 16 | g << 8 | b;
+        }
+        
+        WritableImage image = new WritableImage(SIZE, SIZE);
+        image.getPixelWriter().setPixels(0, 0, SIZE, SIZE, PixelFormat.getIntArgbInstance(), pixels, 0, SIZE);
+        return image;
+    }
+    
+}
@@ -1,69 +1,132 @@
 package ca.uwaterloo.arka.pharmacy;
 
+import ca.uwaterloo.arka.pharmacy.db.PageCursor;
 import ca.uwaterloo.arka.pharmacy.db.UserDao;
 import ca.uwaterloo.arka.pharmacy.db.UserRecord;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
-import javafx.scene.layout.VBox;
+import javafx.util.Duration;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 /**
  * The controller class for the patient list on the left side.
  */
-// TODO some form of pagination
 public class ListController extends PaneController {
     
-    @FXML private VBox patientList; // contains the graphical list of patients
+    // how long typing has to pause before we search
+    private static final Duration SEARCH_DELAY = Duration.millis(150);
+    
+    private static final int PAGE_SIZE = 50;
+    private static final int NEXT_PAGE_ROWS = 10; // how close to the end of the list a row shows to load the next page
+    
+    @FXML private ListView<UserRecord> patientList; // contains the graphical list of patients
+    
+    // the records in the list by id
+    private final Map<Integer, UserRecord> listedRecords = new HashMap<>();
     
     @FXML private TextField searchField;
     
+    private SearchScheduler searchScheduler;
+    
+    // the list of all users, when it's showing, is loaded a page at a time as it's scrolled
+    private Consumer<List<UserRecord>> pageCallback = null; // the current search's, if it's for all users
+    private Consumer<String> pageErrorCb = null;
+    private PageCursor nextPage = null; // or null if there are no more pages
+    private boolean loadingPage = false;
+    
     @FXML
     void initialize() {
-        getAllUsersFromDatabase();
+        patientList.setCellFactory(view -> {
+            PatientCard card = new PatientCard();
+            card.setOnMouseClicked(e -> {
+                if (!card.isEmpty()) getDetailController().displayRecord(card.getItem());
+            });
+            card.indexProperty().addListener((observable, oldValue, newValue) -> loadNextPageIfNearEnd(newValue));
+            return card;
+        });
+        
+        searchScheduler = new SearchScheduler(SEARCH_DELAY, this::searchForUsers, this::clearPatients, records -> {
+            addPatients(records);
+            StartupTimer.listReady(); // the app's usable from the first results on
+        }, this::replacePatients, this::showSearchError);
+        searchScheduler.requestNow(searchField.getText());
         
         // setup searching
-        searchField.textProperty().addListener(((observable, oldValue, newValue) -> searchForUsers(newValue)));
+        searchField.textProperty().addListener(((observable, oldValue, newValue) -> searchScheduler.request(newValue)));
+        
+        // show patients other clients add or remove; searches are served locally, so redoing one is cheap, and a
+        // refresh reloads as many rows as are showing and patches them in place, so the list doesn't jump
+        UserDao.newDao().addChangeListener(searchScheduler::refresh);
+        
+        // changes saved here go to the database in the background, so any trouble with them turns up later
+        UserDao.newDao().addConflictListener(message -> {
+            System.err.println("[ListController] Conflicting changes: " + message);
+            Alert alert = new Alert(Alert.AlertType.WARNING, message);
+            alert.setHeaderText("Someone else changed these patients at the same time");
+            alert.show();
+        });
     }
     
-    private void searchForUsers(String search) { // null or empty or blank for all users
-        // search for users with that name and set that as the list box
+    // null or empty or blank for all users, a page at a time; on a refresh, the list still has the old results in it,
+    // so the first page is as long as what's already loaded
+    private void searchForUsers(String search, Consumer<List<UserRecord>> callback, Consumer<String> errorCb) {
+        nextPage = null;
+        pageCallback = null;
+        loadingPage = false; // any page still loading is for an old search
         if (search == null || search.isBlank()) {
-            getAllUsersFromDatabase();
-            return;
+            pageCallback = callback;
+            pageErrorCb = errorCb;
+            loadPage(null, Math.max(PAGE_SIZE, patientList.getItems().size()));
+        } else {
+            UserDao.newDao().searchByName(search, callback, errorCb);
         }
-        
-        // Search for the records
-        UserDao dao = UserDao.newDao();
-        patientList.getChildren().clear(); // straight up assuming it'll work
-        dao.searchByName(search, record -> {
-            PatientCard card = new PatientCard(record);
-            addPatient(card);
+    }
+    
+    /** Load the page of up to limit users after the given place, if there isn't one loading already */
+    private void loadPage(PageCursor after, int limit) {
+        if (loadingPage) return;
+        loadingPage = true;
+        Consumer<List<UserRecord>> callback = pageCallback;
+        UserDao.newDao().getPage(after, limit, page -> {
+            if (callback != pageCallback) return; // another search has started since
+            loadingPage = false;
+            callback.accept(page);
+            nextPage = page.size() < limit ? null : PageCursor.after(page.get(page.size() - 1));
         }, error -> {
-            System.err.println("[ListController] Could not search for string '" + search + "'");
-            System.err.println("Error: " + error);
-            Alert err = new Alert(Alert.AlertType.ERROR, "Error: could not retrieve search for '" + search + '"');
-            err.show();
+            if (callback != pageCallback) return;
+            loadingPage = false;
+            pageErrorCb.accept(error);
         });
     }
     
-    private void getAllUsersFromDatabase() { // TODO combine this with the method above it
-        // Get all the users
-        UserDao dao = UserDao.newDao();
-        
-        // Get them
-        patientList.getChildren().clear(); // straight up assuming it'll work
-        dao.getAllSortedAlphabetically(record -> {
-            PatientCard card = new PatientCard(record);
-            addPatient(card);
-        }, error -> {
+    private void loadNextPageIfNearEnd(Number shownIndex) {
+        if (nextPage != null && shownIndex.intValue() >= patientList.getItems().size() - NEXT_PAGE_ROWS) {
+            loadPage(nextPage, PAGE_SIZE);
+        }
+    }
+    
+    private void showSearchError(String error) {
+        String search = searchField.getText();
+        if (search == null || search.isBlank()) {
             System.err.println("[ListController] Could not retrieve user records");
             System.err.println("Error: " + error);
             Alert err = new Alert(Alert.AlertType.ERROR, "Error: could not retrieve patients from database");
             err.show();
-        });
+        } else {
+            System.err.println("[ListController] Could not search for string '" + search + "'");
+            System.err.println("Error: " + error);
+            Alert err = new Alert(Alert.AlertType.ERROR, "Error: could not retrieve search for '" + search + '"');
+            err.show();
+        }
     }
     
     @FXML
@@ -76,8 +139,7 @@ public class ListController extends PaneController {
         UserDao dao = UserDao.newDao();
         dao.create(newRecord, () -> {
             // we're good
-            PatientCard newCard = new PatientCard(newRecord);
-            addPatient(newCard);
+            addPatients(Collections.singletonList(newRecord));
             
             getDetailController().displayRecord(newRecord);
             getDetailController().edit();
@@ -89,21 +151,56 @@ public class ListController extends PaneController {
         });
     }
     
+    /** Return the record with the given id if it's in the list, or null */
+    UserRecord findRecord(int id) {
+        return listedRecords.get(id);
+    }
+    
     /** Remove the card with the following record */
     void removePatientCard(UserRecord recordToRemove) {
         if (recordToRemove == null) throw new NullPointerException("cannot remove null card");
-        for (int i = 0; i < patientList.getChildren().size(); ++i) {
-            PatientCard card = (PatientCard) patientList.getChildren().get(i);
-            if (card.getRecord().id == recordToRemove.id) {
-                patientList.getChildren().remove(i);
+        UserRecord listed = listedRecords.remove(recordToRemove.id);
+        if (listed == null) return;
+        
+        // by identity: equals() would also match a different patient with the same details
+        List<UserRecord> items = patientList.getItems();
+        for (int i = items.size() - 1; i >= 0; i--) {
+            if (items.get(i) == listed) {
+                items.remove(i);
                 break;
             }
         }
     }
     
-    private void addPatient(PatientCard card) {
-        card.getView().setOnMouseClicked(e -> getDetailController().displayRecord(card.getRecord()));
-        patientList.getChildren().add(card);
+    private void clearPatients() {
+        patientList.getItems().clear();
+        listedRecords.clear();
+    }
+    
+    /**
+     * Show the given records instead of the ones in the list, only touching the rows that differ, so that the list
+     * keeps its scroll position and selection.
+     */
+    private void replacePatients(List<UserRecord> records) {
+        List<UserRecord> items = patientList.getItems();
+        int common = Math.min(items.size(), records.size());
+        for (int i = 0; i < common; i++) {
+            if (items.get(i) != records.get(i)) items.set(i, records.get(i));
+        }
+        if (items.size() > common) items.remove(common, items.size());
+        else items.addAll(records.subList(common, records.size()));
+        
+        listedRecords.clear();
+        for (UserRecord record : records) {
+            listedRecords.put(record.id, record);
+        }
+    }
+    
+    private void addPatients(List<UserRecord> records) {
+        patientList.getItems().addAll(records); // all at once, so the list updates once
+        for (UserRecord record : records) {
+            listedRecords.put(record.id, record);
+        }
     }
     
 }
@@ -0,0 +1,79 @@
+package ca.uwaterloo.arka.pharmacy;
+
+import ca.uwaterloo.arka.pharmacy.db.UserArchive;
+import ca.uwaterloo.arka.pharmacy.db.UserDao;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Backs up the patient database to a file, or loads a backup into it, from the command line (see UserArchive):
+ *   export FILE [--gzip] [--page-size N]
+ *   import FILE [--batch-size N] [--in-flight N] [--checkpoint FILE]
+ * An export is gzipped if asked to or if FILE ends in .gz; an import works out whether it is. An import's checkpoint
+ * is FILE.checkpoint unless given; if an import stops partway, run the same command again to pick up where it left
+ * off. Run it with gradle patientArchive --args="export patients.ndjson.gz".
+ */
+public class PatientArchive {
+    
+    public static void main(String[] args) {
+        if (args.length < 2 || !args[0].equals("export") && !args[0].equals("import")) usage();
+        
+        Path file = Paths.get(args[1]);
+        boolean gzip = file.toString().endsWith(".gz");
+        int pageSize = UserArchive.DEFAULT_PAGE_SIZE;
+        int batchSize = UserDao.BULK_BATCH_SIZE;
+        int maxInFlight = UserDao.BULK_MAX_IN_FLIGHT;
+        Path checkpoint = Paths.get(file + ".checkpoint");
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--gzip":
+                    gzip = true;
+                    break;
+                case "--page-size":
+                    pageSize = intArg(args, ++i);
+                    break;
+                case "--batch-size":
+                    batchSize = intArg(args, ++i);
+                    break;
+                case "--in-flight":
+                    maxInFlight = intArg(args, ++i);
+                    break;
+                case "--checkpoint":
+                    if (i + 1 == args.length) usage();
+                    checkpoint = Paths.get(args[++i]);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        
+        try {
+            UserArchive.initialize();
+            if (args[0].equals("export")) UserArchive.exportTo(file, gzip, pageSize);
+            else UserArchive.importFrom(file, checkpoint, batchSize, maxInFlight);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("[PatientArchive] " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0); // Firebase's threads would keep us running
+    }
+    
+    private static int intArg(String[] args, int i) {
+        try {
+            if (i < args.length && Integer.parseInt(args[i]) > 0) return Integer.parseInt(args[i]);
+        } catch (NumberFormatException e) {
+            // fall through to the usage
+        }
+        usage();
+        return 0;
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatientArchive export FILE [--gzip] [--page-size N]");
+        System.err.println("       PatientArchive import FILE [--batch-size N] [--in-flight N] [--checkpoint FILE]");
+        System.exit(2);
+    }
+    
+}
@@ -5,53 +5,59 @@ import javafx.beans.binding.Bindings;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Node;
-import javafx.scene.layout.Pane;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.ListCell;
+import javafx.scene.image.ImageView;
 import javafx.scene.text.Text;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 
 /**
- * A custom component representing the patient cards displayed in the list box. Also the controller of that component.
+ * A cell of the patient list, showing a patient card. Also the controller of that card.
+ * The list only makes enough cells to fill the screen and reuses them as it scrolls, so the card is loaded once per
+ * cell, and bound to whichever record the cell is showing at the moment (and unbound from the last one).
  */
-class PatientCard extends Pane {
+class PatientCard extends ListCell<UserRecord> {
     
-    private Node view;
-    
-    private UserRecord record;
+    private final Node view;
     
     @SuppressWarnings("unused") @FXML private Text patientNameText;
     @SuppressWarnings("unused") @FXML private Text doctorsNamesText;
+    @SuppressWarnings("unused") @FXML private ImageView fingerprintThumbnail;
     
-    PatientCard(UserRecord record) {
-        if (record == null) throw new NullPointerException("cannot have null record");
-        this.record = record;
-        
+    PatientCard() {
         FXMLLoader fxmlLoader = new FXMLLoader(getClass().getResource("PatientCard.fxml"));
         fxmlLoader.setController(this);
         try {
             view = fxmlLoader.load(); // triggers us as the controller, initialize() will be called when it's ready
-            getChildren().add(view);
         } catch (IOException e) {
             e.printStackTrace();
             throw new UncheckedIOException(e);
         }
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
     }
-
-    @SuppressWarnings("unused")
-    @FXML
-    public void initialize() {
+    
+    @Override
+    protected void updateItem(UserRecord record, boolean empty) {
+        UserRecord old = getItem();
+        super.updateItem(record, empty);
+        if (old == record && !empty) return; // still bound to it
+        
+        patientNameText.textProperty().unbind();
+        doctorsNamesText.textProperty().unbind();
+        fingerprintThumbnail.imageProperty().unbind();
+        if (empty || record == null) {
+            setGraphic(null);
+            return;
+        }
+        
         patientNameText.textProperty().bind(record.nameProperty());
         doctorsNamesText.textProperty().bind(Bindings.createStringBinding(
                 () -> String.join(", ", record.getDoctors()), record.doctorsProperty()));
-    }
-    
-    UserRecord getRecord() {
-        return record;
-    }
-    
-    Node getView() {
-        return view;
+        fingerprintThumbnail.imageProperty().bind(Bindings.createObjectBinding(
+                () -> FingerprintRenderer.render(record.getFingerprint()), record.fingerprintProperty()));
+        setGraphic(view);
     }
     
 }
@@ -0,0 +1,101 @@
+package ca.uwaterloo.arka.pharmacy;
+
+import ca.uwaterloo.arka.pharmacy.db.UserRecord;
+import javafx.animation.Animation;
+import javafx.animation.PauseTransition;
+import javafx.util.Duration;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Runs searches for what's typed in a search box: only once typing has paused for a moment, only one at a time, and
+ * not again for the same text. Each search gets a generation number, and results or errors from any search but the
+ * latest are dropped, so a slow old search can't mix its results into a newer one's.
+ * Only use this on the FX thread, and make the search deliver its results there too.
+ */
+class SearchScheduler {
+    
+    /** Something that looks records up, like a UserDao method */
+    interface Search {
+        void run(String text, Consumer<List<UserRecord>> callback, Consumer<String> errorCb);
+    }
+    
+    private final Search search;
+    private final Runnable onStart;
+    private final Consumer<List<UserRecord>> onResult;
+    private final Consumer<List<UserRecord>> onRefresh;
+    private final Consumer<String> onError;
+    private final PauseTransition debounce;
+    
+    private String pendingText = null;
+    private String currentText = null; // of the latest search started, stripped
+    private long generation = 0;
+    
+    /**
+     * Make a scheduler that waits for the given pause in typing before starting a search. onStart is called as each
+     * search starts (to clear out the old results, say), then onResult with its results as they come in, or onError.
+     * A refresh doesn't call onStart, so the old results stay up; instead its first results go to onRefresh, to
+     * replace them, and any after that to onResult.
+     */
+    SearchScheduler(Duration delay, Search search, Runnable onStart, Consumer<List<UserRecord>> onResult,
+                    Consumer<List<UserRecord>> onRefresh, Consumer<String> onError) {
+        this.search = search;
+        this.onStart = onStart;
+        this.onResult = onResult;
+        this.onRefresh = onRefresh;
+        this.onError = onError;
+        debounce = new PauseTransition(delay);
+        debounce.setOnFinished(e -> start(pendingText, false));
+    }
+    
+    /** Search for the given text once typing pauses, unless that's what the latest search was for. */
+    void request(String text) {
+        pendingText = text;
+        debounce.playFromStart();
+    }
+    
+    /** Search for the given text right away, even if the latest search was for the same thing. */
+    void requestNow(String text) {
+        debounce.stop();
+        start(text, true);
+    }
+    
+    /**
+     * Search for the same thing as last time again, right away, since the records have changed, leaving the old
+     * results up until the new ones replace them. If typing has changed the search, start the new one instead.
+     */
+    void refresh() {
+        if (debounce.getStatus() == Animation.Status.RUNNING) {
+            requestNow(pendingText);
+            return;
+        }
+        
+        long thisGeneration = ++generation;
+        AtomicBoolean first = new AtomicBoolean(true);
+        search.run(currentText, records -> {
+            if (thisGeneration != generation) return;
+            if (first.getAndSet(false)) onRefresh.accept(records);
+            else onResult.accept(records);
+        }, error -> {
+            if (thisGeneration == generation) onError.accept(error);
+        });
+    }
+    
+    private void start(String text, boolean force) {
+        // surrounding spaces don't change what's found
+        String key = text == null ? "" : text.strip();
+        if (!force && key.equals(currentText)) return; // those results are already showing
+        
+        long thisGeneration = ++generation;
+        currentText = key;
+        onStart.run();
+        search.run(text, records -> {
+            if (thisGeneration == generation) onResult.accept(records);
+        }, error -> {
+            if (thisGeneration == generation) onError.accept(error);
+        });
+    }
+    
+}
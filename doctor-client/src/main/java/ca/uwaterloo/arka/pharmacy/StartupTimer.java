@@ -0,0 +1,65 @@
+package ca.uwaterloo.arka.pharmacy;
+
+import javafx.scene.Scene;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Logs how long startup takes, on every start: when each part of it is done, and when the first frame the user can
+ * work with (the window showing the first list of patients) has been laid out. Times are from when the JVM started,
+ * with the time from when JavaFX called DoctorClient.start in brackets.
+ * Only use this on the FX thread, except mark, which can be called from any thread.
+ */
+final class StartupTimer {
+    
+    private static final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static long appStart = 0;
+    
+    private static Scene scene = null; // once it's showing
+    private static boolean listReady = false;
+    private static boolean done = false;
+    
+    private StartupTimer() {}
+    
+    /** Called first thing in DoctorClient.start */
+    static void start() {
+        appStart = System.currentTimeMillis();
+        mark("Starting");
+    }
+    
+    /** Log that part of startup is done */
+    static void mark(String what) {
+        long now = System.currentTimeMillis();
+        System.out.printf("[StartupTimer] %s at %d ms (%d ms)%n", what, now - jvmStart, now - appStart);
+    }
+    
+    /** Called once the window is showing the scene */
+    static void showing(Scene shown) {
+        mark("Window shown");
+        scene = shown;
+        measureIfReady();
+    }
+    
+    /** Called whenever the patient list is filled in; only the first time counts */
+    static void listReady() {
+        if (listReady) return;
+        listReady = true;
+        mark("Patient list filled in");
+        measureIfReady();
+    }
+    
+    /** Once there's something to interact with, log when the next frame has been laid out (and so can be drawn) */
+    private static void measureIfReady() {
+        if (done || scene == null || !listReady) return;
+        done = true;
+        Scene measured = scene;
+        scene.addPostLayoutPulseListener(new Runnable() {
+            @Override
+            public void run() {
+                measured.removePostLayoutPulseListener(this);
+                mark("First interactive frame");
+            }
+        });
+    }
+    
+}
@@ -0,0 +1,154 @@
+package ca.uwaterloo.arka.pharmacy.capture;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameGrabber;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The application's webcam. Opening the camera and letting its auto-exposure settle takes seconds, so instead of
+ * opening it for every capture we open it for the first subscriber and keep it open (and grabbing, so that exposure
+ * stays settled and no stale frames pile up) until nobody has used it for a while. Every subscriber gets every frame.
+ * The camera is released for good in shutdownInstance(), called when the application exits.
+ */
+public class CameraService implements FrameSource {
+    
+    // how long to keep the camera open after the last subscriber leaves
+    private static final long IDLE_TIMEOUT_MS = 2 * 60_000;
+    
+    private static CameraService instance = null;
+    
+    private final int deviceNumber;
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService idleTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "camera-idle-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private FrameGrabber grabber = null;
+    private Thread grabThread = null;
+    private volatile boolean open = false;
+    private ScheduledFuture<?> idleClose = null;
+    
+    /**
+     * Return the application-wide camera service for the default webcam. The camera isn't opened until someone
+     * subscribes.
+     */
+    public static synchronized CameraService getInstance() {
+        if (instance == null) instance = new CameraService(0);
+        return instance;
+    }
+    
+    /**
+     * Release the camera if it's open. Called when the application exits.
+     */
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+    
+    private CameraService(int deviceNumber) {
+        this.deviceNumber = deviceNumber;
+    }
+    
+    @Override
+    public synchronized Subscription subscribe(Consumer consumer) throws Exception {
+        if (idleClose != null) {
+            idleClose.cancel(false);
+            idleClose = null;
+        }
+        if (!open) openDevice();
+        
+        consumers.add(consumer);
+        return () -> unsubscribe(consumer);
+    }
+    
+    private synchronized void unsubscribe(Consumer consumer) {
+        if (!consumers.remove(consumer) || !consumers.isEmpty() || !open) return;
+        idleClose = idleTimer.schedule(() -> {
+            System.out.println("[CameraService] Camera idle, closing it");
+            closeDevice();
+        }, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    private synchronized void shutdown() {
+        closeDevice();
+        idleTimer.shutdownNow();
+    }
+    
+    private void openDevice() throws Exception {
+        long start = System.nanoTime();
+        FrameGrabber newGrabber = new OpenCVFrameGrabber(deviceNumber);
+        newGrabber.start();
+        grabber = newGrabber;
+        System.out.println("[CameraService] Opened camera " + deviceNumber + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        
+        open = true;
+        grabThread = new Thread(() -> grabLoop(newGrabber), "camera-grab");
+        grabThread.setDaemon(true);
+        grabThread.start();
+    }
+    
+    private synchronized void closeDevice() {
+        if (!open) return;
+        open = false;
+        try {
+            grabThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopGrabber(grabber);
+        grabber = null;
+        grabThread = null;
+    }
+    
+    private static void stopGrabber(FrameGrabber grabber) {
+        try {
+            grabber.stop();
+        } catch (Exception e) {
+            System.err.println("[CameraService] Exception in stopping grabber");
+            e.printStackTrace();
+        }
+    }
+    
+    private void grabLoop(FrameGrabber grabber) {
+        while (open) {
+            Frame frame;
+            try {
+                frame = grabber.grab();
+            } catch (Exception e) {
+                System.err.println("[CameraService] Could not grab a frame, closing the camera");
+                e.printStackTrace();
+                open = false;
+                for (Consumer consumer : consumers) {
+                    consumer.onError(e);
+                }
+                consumers.clear();
+                stopGrabber(grabber);
+                return;
+            }
+            if (frame == null || frame.image == null) continue;
+            
+            for (Consumer consumer : consumers) {
+                try {
+                    consumer.onFrame(frame);
+                } catch (RuntimeException e) {
+                    // one broken consumer shouldn't starve the others
+                    System.err.println("[CameraService] Frame consumer failed");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,271 @@
+package ca.uwaterloo.arka.pharmacy.capture;
+
+import ca.uwaterloo.arka.pharmacy.face.EmbeddingWorker;
+import ca.uwaterloo.arka.pharmacy.face.FrameQualityGate;
+import ca.uwaterloo.arka.pharmacy.face.FrameRing;
+import org.bytedeco.javacv.Frame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Captures a face fingerprint as a pipeline of stages running at the same time, so the camera keeps grabbing while
+ * frames are being embedded and several frames are embedded at once:
+ * a grab stage (a subscriber of the frame source) copies frames into a shared frame ring and queues their slots,
+ * N embedding stages (each with its own
+ * python worker) turn queued frames into fingerprint samples, and the aggregator (the thread calling run()) collects
+ * the samples and decides when to stop.
+ * The frame queue is short and drops its oldest frame when full: a stale frame isn't worth embedding when a fresher
+ * one is available.
+ */
+public class CapturePipeline {
+    
+    /**
+     * Progress callbacks. These are called from the pipeline's threads, not the FX thread.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        
+        /**
+         * A new fingerprint sample was accepted; there are now the given number of samples.
+         */
+        void onSample(int samples);
+        
+    }
+    
+    // how long the stages wait on their queues before checking whether the pipeline is still running
+    private static final long POLL_MS = 100;
+    // how long to go without a usable sample before giving up
+    private static final long SAMPLE_TIMEOUT_MS = 15_000;
+    
+    private final FrameSource source;
+    private final List<EmbeddingWorker> workers;
+    private final Listener listener;
+    
+    private final BlockingQueue<Integer> frames;
+    private final BlockingQueue<Sample> samples = new LinkedBlockingQueue<>();
+    private volatile FrameRing ring = null;
+    private volatile boolean running = false;
+    private final Object grabLock = new Object();
+    
+    private final AtomicLong framesGrabbed = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong framesEmbedded = new AtomicLong();
+    private final AtomicLong framesWithoutFace = new AtomicLong(); // according to the embedder
+    private final Map<FrameQualityGate.Verdict, AtomicLong> framesRejected =
+            new EnumMap<>(FrameQualityGate.Verdict.class);
+    
+    /**
+     * Make a pipeline taking frames from the given source with the given number of embedding workers.
+     */
+    public CapturePipeline(FrameSource source, int workerCount, Listener listener) {
+        this.source = source;
+        this.workers = EmbeddingWorker.getInstances(workerCount);
+        this.listener = listener;
+        this.frames = new ArrayBlockingQueue<>(workerCount);
+        for (FrameQualityGate.Verdict verdict : FrameQualityGate.Verdict.values()) {
+            framesRejected.put(verdict, new AtomicLong());
+        }
+    }
+    
+    /**
+     * The number of embedding workers worth running on this machine: each one is a python process that keeps a core
+     * busy, so use about half of them, within reason.
+     */
+    public static int defaultWorkerCount() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+    
+    /**
+     * Run the pipeline until the samples converge, and return the resulting fingerprint. Returns null if no usable
+     * sample of a face came along for too long. Blocks the calling thread, which acts as the aggregator.
+     */
+    public double[] run() throws Exception {
+        long start = System.nanoTime();
+        running = true;
+        
+        List<Thread> threads = new ArrayList<>();
+        for (EmbeddingWorker worker : workers) {
+            threads.add(startStage("capture-embed", () -> embedStage(worker)));
+        }
+        
+        FrameSource.Subscription subscription = null;
+        try {
+            subscription = source.subscribe(new FrameSource.Consumer() {
+                @Override
+                public void onFrame(Frame frame) {
+                    grabStage(frame);
+                }
+                
+                @Override
+                public void onError(Exception e) {
+                    samples.add(new Sample(null, e)); // let the aggregator know
+                }
+            });
+            
+            FingerprintAggregator aggregator = new FingerprintAggregator();
+            while (!aggregator.isConverged()) {
+                Sample sample = samples.poll(SAMPLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (sample == null) return null; // nobody's in front of the camera
+                if (sample.error != null) throw sample.error;
+                
+                aggregator.add(sample.fingerprint);
+                listener.onSample(aggregator.size());
+            }
+            return aggregator.meanFingerprint();
+        } finally {
+            if (subscription != null) {
+                subscription.close();
+            }
+            synchronized (grabLock) {
+                running = false; // a frame may still be in flight on the source's thread
+            }
+            for (Thread thread : threads) {
+                thread.join(); // nobody may be using the ring when we close it
+            }
+            
+            // nobody's going to embed what's left
+            Integer leftover;
+            while ((leftover = frames.poll()) != null) {
+                ring.release(leftover);
+            }
+            
+            long bytesPerFrame = 0;
+            if (ring != null) {
+                long written = ring.getFramesWritten();
+                bytesPerFrame = written == 0 ? 0 : ring.getBytesCopied() / written;
+                ring.close();
+            }
+            
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("[CapturePipeline] Ran for %.2f s with %d workers: %d frames grabbed (%.1f fps, %d bytes "
+                    + "copied per frame), %d dropped, %d rejected %s, %d embedded (%d without a face)%n", seconds,
+                    workers.size(), framesGrabbed.get(), framesGrabbed.get() / seconds, bytesPerFrame,
+                    framesDropped.get(), getFramesRejected(), framesRejected, framesEmbedded.get(),
+                    framesWithoutFace.get());
+        }
+    }
+    
+    /**
+     * The number of frames the quality gate kept from the embedder for the given reason.
+     */
+    public long getFramesRejected(FrameQualityGate.Verdict verdict) {
+        return framesRejected.get(verdict).get();
+    }
+    
+    /**
+     * The total number of frames the quality gate kept from the embedder.
+     */
+    public long getFramesRejected() {
+        return framesRejected.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+    
+    /**
+     * The number of frames that went through the embedder, i.e. passed the quality gate.
+     */
+    public long getFramesEmbedded() {
+        return framesEmbedded.get();
+    }
+    
+    private Thread startStage(String name, Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (Exception e) {
+                samples.add(new Sample(null, e)); // let the aggregator know
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+    
+    private void grabStage(Frame frame) {
+        synchronized (grabLock) {
+            if (!running) return;
+            try {
+                if (ring == null) {
+                    // enough slots for every worker's frame, a full queue, and the one being written
+                    ring = new FrameRing(workers.size() * 2 + 1, frame.imageWidth, frame.imageHeight);
+                }
+            } catch (IOException e) {
+                samples.add(new Sample(null, e));
+                running = false;
+                return;
+            }
+            framesGrabbed.incrementAndGet();
+            
+            int slot = ring.write(frame);
+            if (slot < 0) {
+                framesDropped.incrementAndGet();
+                return;
+            }
+            
+            // make room by dropping the stalest frame rather than waiting
+            while (!frames.offer(slot)) {
+                Integer stale = frames.poll();
+                if (stale != null) {
+                    ring.release(stale);
+                    framesDropped.incrementAndGet();
+                }
+            }
+        }
+    }
+    
+    private void embedStage(EmbeddingWorker worker) throws IOException, InterruptedException {
+        FrameQualityGate gate = new FrameQualityGate(); // one each, it isn't thread-safe
+        while (running) {
+            Integer slot = frames.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            if (slot == null) continue;
+            
+            double[] fingerprint;
+            try {
+                // only bother the embedder with frames that look promising
+                FrameQualityGate.Verdict verdict = gate.check(ring.getPixels(slot), ring.getWidth(slot),
+                        ring.getHeight(slot));
+                if (verdict != FrameQualityGate.Verdict.OK) {
+                    framesRejected.get(verdict).incrementAndGet();
+                    continue;
+                }
+                fingerprint = worker.embed(ring, slot);
+            } finally {
+                ring.release(slot);
+            }
+            framesEmbedded.incrementAndGet();
+            if (fingerprint == null) {
+                framesWithoutFace.incrementAndGet();
+            } else if (running) {
+                samples.add(new Sample(fingerprint, null));
+            }
+        }
+    }
+    
+    @FunctionalInterface
+    private interface Stage {
+        
+        void run() throws Exception;
+        
+    }
+    
+    /** What comes out of an embedding stage: a fingerprint or an error. */
+    private static class Sample {
+        
+        final double[] fingerprint;
+        final Exception error;
+        
+        Sample(double[] fingerprint, Exception error) {
+            this.fingerprint = fingerprint;
+            this.error = error;
+        }
+        
+    }
+    
+}
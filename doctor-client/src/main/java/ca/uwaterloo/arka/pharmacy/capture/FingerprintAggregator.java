@@ -0,0 +1,88 @@
+package ca.uwaterloo.arka.pharmacy.capture;
+
+import java.util.Arrays;
+
+/**
+ * Collects fingerprint samples of the same face and decides when there are enough of them that agree closely
+ * enough to be trusted. The accepted fingerprint is the mean of the samples.
+ * The samples agree closely enough when their total variance (summed over all 128 dimensions) is within a bound
+ * that loosens slightly with the number of samples, either for all of them or with any single outlier left out.
+ * Running per-dimension sums and sums of squares are kept so that adding a sample is O(128) and the convergence
+ * check is O(n * 128), without copying the samples around.
+ */
+public class FingerprintAggregator {
+    
+    private static final int DIMENSIONS = 128;
+    
+    private final double[] sums = new double[DIMENSIONS];
+    private final double[] sumsOfSquares = new double[DIMENSIONS];
+    private double[] samples = new double[16 * DIMENSIONS]; // packed, one sample after the other
+    private int n = 0;
+    
+    public void add(double[] fingerprint) {
+        if (fingerprint.length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+        if ((n + 1) * DIMENSIONS > samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        System.arraycopy(fingerprint, 0, samples, n * DIMENSIONS, DIMENSIONS);
+        for (int j = 0; j < DIMENSIONS; j++) {
+            double v = fingerprint[j];
+            sums[j] += v;
+            sumsOfSquares[j] += v * v;
+        }
+        n++;
+    }
+    
+    public int size() {
+        return n;
+    }
+    
+    /**
+     * Whether we have enough samples, and they're consistent enough, to stop sampling.
+     */
+    public boolean isConverged() {
+        return n > 2 && !tooMuchUncertainty();
+    }
+    
+    public double[] meanFingerprint() {
+        double[] result = new double[DIMENSIONS];
+        if (n == 0) return result;
+        for (int j = 0; j < DIMENSIONS; j++) {
+            result[j] = sums[j] / n;
+        }
+        return result;
+    }
+    
+    private boolean tooMuchUncertainty() {
+        if (varianceWithout(-1) <= bound(n)) return false;
+        int m = n - 1;
+        for (int i = 0; i < n; i++) {
+            if (varianceWithout(i) <= bound(m)) return false;
+        }
+        return true;
+    }
+    
+    /** Total variance of the samples, leaving out the given sample (or none if it's -1). */
+    private double varianceWithout(int left) {
+        int count = left < 0 ? n : n - 1;
+        int offset = left * DIMENSIONS;
+        double variance = 0;
+        for (int j = 0; j < DIMENSIONS; j++) {
+            double sum = sums[j];
+            double sumsq = sumsOfSquares[j];
+            if (left >= 0) {
+                double v = samples[offset + j];
+                sum -= v;
+                sumsq -= v * v;
+            }
+            double mean = sum / count;
+            variance += sumsq / count - mean * mean;
+        }
+        return variance;
+    }
+    
+    private static double bound(int count) {
+        return 0.01 + 0.001 * count;
+    }
+    
+}
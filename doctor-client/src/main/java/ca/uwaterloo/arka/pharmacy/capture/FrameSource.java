@@ -0,0 +1,40 @@
+package ca.uwaterloo.arka.pharmacy.capture;
+
+import org.bytedeco.javacv.Frame;
+
+/**
+ * Somewhere frames come from, e.g. a webcam. Frames are pushed to subscribers on the source's own thread as they
+ * arrive; a frame is only valid for the duration of the callback, so consumers must copy out whatever they need.
+ */
+public interface FrameSource {
+    
+    /**
+     * Something that wants frames. Callbacks must be quick, since they hold up every other consumer.
+     */
+    interface Consumer {
+        
+        void onFrame(Frame frame);
+        
+        /**
+         * The source failed and won't deliver any more frames to this consumer.
+         */
+        default void onError(Exception e) {}
+        
+    }
+    
+    /**
+     * A consumer's registration with a source. Closing it stops the deliveries.
+     */
+    interface Subscription extends AutoCloseable {
+        
+        @Override
+        void close();
+        
+    }
+    
+    /**
+     * Start delivering frames to the consumer, or throw if the source can't be started.
+     */
+    Subscription subscribe(Consumer consumer) throws Exception;
+    
+}
@@ -0,0 +1,142 @@
+package ca.uwaterloo.arka.pharmacy.capture;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.bytedeco.javacv.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shows a frame source in an ImageView at the source's frame rate.
+ * Frames are converted from BGR to BGRA on the source's thread into a reused staging buffer. Once per display pulse,
+ * if a new frame arrived, the FX thread copies it into the direct buffer backing a PixelBuffer, which the ImageView's
+ * image is made from, so no image is allocated per frame. The source's thread never waits for the FX thread: a frame
+ * that arrives while the FX thread is copying is skipped.
+ */
+public class LivePreview implements FrameSource.Consumer {
+    
+    // how many frames to average the FX thread time over before logging it
+    private static final int STATS_FRAMES = 300;
+    
+    private final FrameSource source;
+    private final ImageView view;
+    private final ReentrantLock stagingLock = new ReentrantLock();
+    
+    // written on the source's thread, guarded by stagingLock
+    private ByteBuffer staging = null;
+    private int width = 0;
+    private int height = 0;
+    private byte[] rowIn = new byte[0];
+    private byte[] rowOut = new byte[0];
+    private volatile boolean dirty = false;
+    
+    // FX thread only
+    private PixelBuffer<ByteBuffer> pixelBuffer = null;
+    private long fxNanos = 0;
+    private int fxFrames = 0;
+    
+    private final AnimationTimer pulse = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            if (dirty) present();
+        }
+    };
+    
+    private FrameSource.Subscription subscription = null;
+    
+    public LivePreview(FrameSource source, ImageView view) {
+        this.source = source;
+        this.view = view;
+    }
+    
+    /**
+     * Start showing frames. Opening the source may take a while, so don't call this on the FX thread.
+     */
+    public synchronized void start() throws Exception {
+        if (subscription != null) return;
+        subscription = source.subscribe(this);
+        Platform.runLater(pulse::start);
+    }
+    
+    /**
+     * Stop showing frames. The last frame stays in the view until something else replaces it.
+     */
+    public synchronized void stop() {
+        if (subscription == null) return;
+        subscription.close();
+        subscription = null;
+        Platform.runLater(pulse::stop);
+    }
+    
+    @Override
+    public void onFrame(Frame frame) {
+        if (frame.imageDepth != Frame.DEPTH_UBYTE || frame.imageChannels != 3) return;
+        
+        if (!stagingLock.tryLock()) return;
+        try {
+            int w = frame.imageWidth;
+            int h = frame.imageHeight;
+            if (staging == null || w != width || h != height) {
+                staging = ByteBuffer.allocateDirect(w * h * 4);
+                rowIn = new byte[w * 3];
+                rowOut = new byte[w * 4];
+                width = w;
+                height = h;
+            }
+            
+            // BGR -> BGRA, a row at a time since the frame's rows may be padded
+            ByteBuffer src = ((ByteBuffer) frame.image[0]).duplicate();
+            int stride = frame.imageStride;
+            staging.clear();
+            for (int row = 0; row < h; row++) {
+                src.position(row * stride);
+                src.get(rowIn, 0, rowIn.length);
+                for (int x = 0, i = 0, o = 0; x < w; x++, i += 3, o += 4) {
+                    rowOut[o    ] = rowIn[i    ];
+                    rowOut[o + 1] = rowIn[i + 1];
+                    rowOut[o + 2] = rowIn[i + 2];
+                    rowOut[o + 3] = (byte) 0xff;
+                }
+                staging.put(rowOut);
+            }
+            dirty = true;
+        } finally {
+            stagingLock.unlock();
+        }
+    }
+    
+    private void present() {
+        long start = System.nanoTime();
+        stagingLock.lock();
+        try {
+            if (pixelBuffer == null || pixelBuffer.getWidth() != width || pixelBuffer.getHeight() != height) {
+                pixelBuffer = new PixelBuffer<>(width, height, ByteBuffer.allocateDirect(width * height * 4),
+                        PixelFormat.getByteBgraPreInstance());
+                view.setImage(new WritableImage(pixelBuffer));
+            }
+            pixelBuffer.updateBuffer(pixels -> {
+                ByteBuffer target = pixels.getBuffer();
+                staging.clear();
+                target.clear();
+                target.put(staging);
+                return null; // the whole image changed
+            });
+            dirty = false;
+        } finally {
+            stagingLock.unlock();
+        }
+        
+        fxNanos += System.nanoTime() - start;
+        if (++fxFrames == STATS_FRAMES) {
+            System.out.printf("[LivePreview] FX thread time: %.1f us per frame%n", fxNanos / 1000.0 / fxFrames);
+            fxNanos = 0;
+            fxFrames = 0;
+        }
+    }
+    
+}
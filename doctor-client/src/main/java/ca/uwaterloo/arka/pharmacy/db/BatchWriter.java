@@ -0,0 +1,144 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Writes lots of items to the DB quickly: the paths and values of many items go into one multi-path update, up to a
+ * number of items or an (estimated) size, and a few of those updates are in flight at once. Each update is atomic,
+ * so the items in it all succeed or all fail together; the result is still reported for each item.
+ * Not tied to Firebase, so that it can be measured against a stand-in (see BulkWriteBenchmark).
+ */
+class BatchWriter<T> {
+    
+    /** Where the updates go */
+    interface Backend {
+        /** Apply the multi-path update, then call done with null if it worked or an error message if it didn't. */
+        void write(Map<String, Object> update, Consumer<String> done);
+    }
+    
+    static final int MAX_BATCH_BYTES = 1 << 20; // well under the DB's limit on a single write
+    
+    private final Backend backend;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final Executor callbackExecutor;
+    
+    // guarded by this
+    private final List<List<T>> batches = new ArrayList<>();
+    private final List<Map<String, Object>> updates = new ArrayList<>();
+    private int nextBatch = 0;
+    private int inFlight = 0;
+    private int remaining = 0;
+    
+    private BiConsumer<T, String> resultCb;
+    private Runnable doneCb;
+    
+    /**
+     * Make a writer that puts up to batchSize items in each update and has up to maxInFlight updates in flight at
+     * once. Callbacks are run with callbackExecutor (say, Platform::runLater).
+     */
+    BatchWriter(Backend backend, int batchSize, int maxInFlight, Executor callbackExecutor) {
+        if (batchSize < 1 || maxInFlight < 1) throw new IllegalArgumentException("batches need room for something");
+        this.backend = backend;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.callbackExecutor = callbackExecutor;
+    }
+    
+    /**
+     * Write each item's paths and values (from paths). Call resultCb with each item and null if it was written, or
+     * an error message if it wasn't, then doneCb once every item has its result. A writer can only be used once.
+     */
+    synchronized void writeAll(Collection<T> items, Function<T, Map<String, Object>> paths,
+                               BiConsumer<T, String> resultCb, Runnable doneCb) {
+        if (this.resultCb != null) throw new IllegalStateException("this writer has been used already");
+        this.resultCb = resultCb;
+        this.doneCb = doneCb;
+        
+        // split them up by count and size
+        List<T> batch = new ArrayList<>();
+        Map<String, Object> update = new HashMap<>();
+        long bytes = 0;
+        for (T item : items) {
+            Map<String, Object> itemPaths = paths.apply(item);
+            long itemBytes = estimateSize(itemPaths);
+            if (!batch.isEmpty() && (batch.size() == batchSize || bytes + itemBytes > MAX_BATCH_BYTES)) {
+                batches.add(batch);
+                updates.add(update);
+                batch = new ArrayList<>();
+                update = new HashMap<>();
+                bytes = 0;
+            }
+            batch.add(item);
+            update.putAll(itemPaths);
+            bytes += itemBytes;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+            updates.add(update);
+        }
+        
+        remaining = batches.size();
+        if (remaining == 0) callbackExecutor.execute(doneCb);
+        sendMore();
+    }
+    
+    private synchronized void sendMore() {
+        while (inFlight < maxInFlight && nextBatch < batches.size()) {
+            int index = nextBatch++;
+            Map<String, Object> update = updates.get(index);
+            updates.set(index, null); // let it go once it's sent
+            inFlight++;
+            backend.write(update, error -> finished(index, error));
+        }
+    }
+    
+    private void finished(int index, String error) {
+        List<T> batch;
+        boolean done;
+        synchronized (this) {
+            batch = batches.get(index);
+            batches.set(index, null);
+            inFlight--;
+            done = --remaining == 0;
+        }
+        
+        callbackExecutor.execute(() -> {
+            for (T item : batch) {
+                resultCb.accept(item, error);
+            }
+            if (done) doneCb.run();
+        });
+        sendMore();
+    }
+    
+    /** Roughly how many bytes of JSON the value comes to */
+    static long estimateSize(Object value) {
+        if (value == null) return 4;
+        if (value instanceof CharSequence) return ((CharSequence) value).length() + 2;
+        if (value instanceof Map) {
+            long size = 2;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += estimateSize(String.valueOf(entry.getKey())) + 1 + estimateSize(entry.getValue()) + 1;
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = 2;
+            for (Object element : (Collection<?>) value) {
+                size += estimateSize(element) + 1;
+            }
+            return size;
+        }
+        return 12; // numbers and booleans
+    }
+    
+}
@@ -13,11 +13,39 @@ import javafx.application.Platform;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 class DbUserDao implements UserDao {
     
+    static final String USERS = "arka/user";
+    static final String USER_INDEX = "arka/userIndex"; // just the id, name and doctors of each user, for lists
+    static final String USER_FINGERPRINT = "arka/userFingerprint"; // each user's fingerprint8, for FingerprintReplica
+    
+    // the most search results to show; anyone looking for more should type more
+    private static final int SEARCH_LIMIT = 500;
+    
+    // done once Firebase has been initialized; the app starts from the records saved here while it is
+    private static final CompletableFuture<Void> initialized = new CompletableFuture<>();
+    
     public void initialize() throws IOException {
+        try {
+            connect();
+        } catch (IOException | RuntimeException e) {
+            initialized.completeExceptionally(e);
+            throw e;
+        }
+    }
+    
+    private static void connect() throws IOException {
         InputStream serviceAccount = DbUserDao.class.getResourceAsStream(
                 "/ca/uwaterloo/arka/pharmacy/db/serviceAccountKey.json");
         if (serviceAccount == null) throw new IOException("No key file");
@@ -28,86 +56,152 @@ class DbUserDao implements UserDao {
                 .build();
         FirebaseApp.initializeApp(options);
         System.out.println("[DbUserDao] Initialized Firebase");
+        initialized.complete(null);
+    }
+    
+    /**
+     * Run the action once initialize has finished (on whichever thread finishes it, or right away if it has), so
+     * that everything else can get going while it does; never, if it fails. Everything that uses Firebase goes
+     * through here.
+     */
+    static void whenInitialized(Runnable action) {
+        initialized.thenRun(action).exceptionally(e -> {
+            if (!initialized.isCompletedExceptionally()) e.printStackTrace(); // the action failed, not initialize
+            return null;
+        });
     }
     
     /**
-     * Create the supplied user record in the DB.
+     * Create the supplied user record in the DB, along with its entry in the user index.
      */
     @Override
     public void create(UserRecord user, Runnable callback, Consumer<String> errorCb) {
-        FirebaseDatabase.getInstance().goOnline();
-        FirebaseDatabase.getInstance().getReference("/arka/user/" + user.id).setValue(user, (error, ref) -> {
-            if (error == null) {
-                System.out.println("[DbUserDao] Successfully created user " + user.id);
-                Platform.runLater(callback);
-            } else {
-                Platform.runLater(() -> errorCb.accept(error.getMessage()));
-            }
+        UserReplica.getInstance().putLocal(user);
+        user.clearChanges(); // it's all being written
+        whenInitialized(() -> {
+            FirebaseDatabase.getInstance().goOnline();
+            FirebaseDatabase.getInstance().getReference().updateChildren(withSummary(user, user), (error, ref) -> {
+                if (error == null) {
+                    System.out.println("[DbUserDao] Successfully created user " + user.id);
+                    Platform.runLater(callback);
+                } else {
+                    Platform.runLater(() -> errorCb.accept(error.getMessage()));
+                }
+            });
         });
     }
     
     /**
      * Retrieve a list of user records on this page, sorted alphabetically by name. Call the callback with each
      * record retrieved. If there's an error, call the error callback.
+     * Served from the replica, so this only waits on the network the first time.
      */
     @Override
-    public void getAllSortedAlphabetically(Consumer<UserRecord> callback, Consumer<String> errorCb) {
-        Query query = FirebaseDatabase.getInstance().getReference("/arka/user").orderByChild("name");
-        doSearch(query, callback, errorCb);
+    public void getAllSortedAlphabetically(Consumer<List<UserRecord>> callback, Consumer<String> errorCb) {
+        UserReplica replica = UserReplica.getInstance();
+        replica.whenSynced(() -> callback.accept(new ArrayList<>(replica.getAll())), errorCb);
     }
     
     /**
-     * Retrieve a list of user records with the given name in arbitrary order, calling callback for each one.
+     * Retrieve a page of user records sorted by name. Once the replica has every record, pages come from it;
+     * until then, each page is its own query for just that page, so the first page doesn't wait for the rest.
      */
     @Override
-    public void searchByName(String name, Consumer<UserRecord> callback, Consumer<String> errorCb) {
-        // the startAt/endAt trick is to get all users whose names start with name
-        // unicode #ffff is the 'last' character so all names starting with name will be between name and name + that
-        Query query = FirebaseDatabase.getInstance().getReference("/arka/user").orderByChild("name")
-                .startAt(name).endAt(name + "\uffff");
-        doSearch(query, callback, errorCb);
-    }
-    
-    private void doSearch(Query query, Consumer<UserRecord> callback, Consumer<String> errorCb) {
-        FirebaseDatabase.getInstance().goOnline();
-        query.addListenerForSingleValueEvent(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot snapshot) {
-                try {
-                    System.out.println("[DbUserDao] Retrieved from database:");
-                    for (DataSnapshot record : snapshot.getChildren()) {
-                        UserRecord userRecord = record.getValue(UserRecord.class);
-                        System.out.println(userRecord);
-                        Platform.runLater(() -> callback.accept(userRecord));
+    public void getPage(PageCursor after, int limit, Consumer<List<UserRecord>> callback, Consumer<String> errorCb) {
+        UserReplica replica = UserReplica.getInstance();
+        replica.ensureStarted(); // it's in sync right away if everything was saved here last time
+        if (replica.isSynced()) {
+            callback.accept(replica.getPage(after, limit));
+            return;
+        }
+        
+        whenInitialized(() -> {
+            // startAt is inclusive, so ask for one more in case the record at the cursor is still there
+            Query query = FirebaseDatabase.getInstance().getReference(USER_INDEX).orderByChild("name");
+            if (after != null) query = query.startAt(after.name, Integer.toString(after.id)).limitToFirst(limit + 1);
+            else query = query.limitToFirst(limit);
+            
+            FirebaseDatabase.getInstance().goOnline();
+            query.addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot snapshot) {
+                    List<UserRecord> page = new ArrayList<>(limit);
+                    try {
+                        for (DataSnapshot child : snapshot.getChildren()) {
+                            UserRecord record = readSummary(child);
+                            if (record == null) continue;
+                            if (page.size() < limit && (after == null || after.isBefore(record))) page.add(record);
+                        }
+                    } catch (Exception e) {
+                        // for not silencing errors
+                        e.printStackTrace();
                     }
-                } catch (Exception e) {
-                    // for not silencing errors
-                    e.printStackTrace();
+                    Platform.runLater(() -> callback.accept(page));
                 }
-            }
-
-            @Override
-            public void onCancelled(DatabaseError error) {
-                Platform.runLater(() -> errorCb.accept(error.getMessage()));
-            }
+                
+                @Override
+                public void onCancelled(DatabaseError error) {
+                    Platform.runLater(() -> errorCb.accept(error.getMessage()));
+                }
+            });
         });
     }
     
     /**
-     * Update the user record on the DB with the supplied user record, or call the error callback.
+     * Retrieve the user records whose names match the given search, best first, calling callback with them.
+     * Served from the replica's name index, like getAllSortedAlphabetically.
+     */
+    @Override
+    public void searchByName(String name, Consumer<List<UserRecord>> callback, Consumer<String> errorCb) {
+        UserReplica replica = UserReplica.getInstance();
+        replica.whenSynced(() -> callback.accept(replica.search(name, SEARCH_LIMIT)), errorCb);
+    }
+    
+    @Override
+    public void addChangeListener(Runnable listener) {
+        UserReplica.getInstance().addChangeListener(listener);
+    }
+    
+    /**
+     * Save the fields of the supplied user record that have changed since it was loaded or last saved, and its entry
+     * in the user index if that's changed, or call the error callback. Only those fields are written, so this
+     * doesn't undo records added to the user by kiosks in the meantime.
      */
     @Override
     public void update(UserRecord user, Runnable callback, Consumer<String> errorCb) {
-        //Overwrites current user by creating a new entry
-        FirebaseDatabase.getInstance().goOnline();
-        DatabaseReference usersRef = FirebaseDatabase.getInstance().getReference("/arka/user/" + user.id);
-        usersRef.setValue(user, (error, ref) -> {
-            if (error == null) {
-                System.out.println("Successfully updated user " + user.id);
-                Platform.runLater(callback);
-            } else {
-                Platform.runLater(() -> errorCb.accept(error.getMessage()));
-            }
+        // the fields that haven't loaded would look like they'd been cleared
+        if (!user.isDetailsLoaded()) {
+            errorCb.accept("The record of user " + user.id + " hasn't finished loading");
+            return;
+        }
+        
+        UserReplica.getInstance().putLocal(user);
+        Map<String, Object> changes = user.takeChanges();
+        if (changes.isEmpty()) {
+            callback.run();
+            return;
+        }
+        
+        Map<String, Object> update = new HashMap<>();
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            update.put(USERS + "/" + user.id + "/" + change.getKey(), change.getValue());
+            addIndexPaths(user.id, change.getKey(), change.getValue(), update);
+        }
+        
+        whenInitialized(() -> {
+            FirebaseDatabase.getInstance().goOnline();
+            FirebaseDatabase.getInstance().getReference().updateChildren(update, (error, ref) -> {
+                if (error == null) {
+                    System.out.println("Successfully updated " + String.join(", ", changes.keySet()) + " of user "
+                            + user.id);
+                    Platform.runLater(callback);
+                } else {
+                    Platform.runLater(() -> {
+                        user.restoreChanges(changes.keySet()); // so saving again retries them
+                        errorCb.accept(error.getMessage());
+                    });
+                }
+            });
         });
     }
     
@@ -116,16 +210,192 @@ class DbUserDao implements UserDao {
      */
     @Override
     public void delete(UserRecord record, Runnable callback, Consumer<String> errorCb) {
-        FirebaseDatabase.getInstance().goOnline();
-        FirebaseDatabase.getInstance().getReference().child("arka").child("user").child(Integer.toString(record.id))
-                .removeValue((error, ref) -> {
-                    if (error == null) {
-                        System.out.println("Successfully deleted user " + record.id);
-                        Platform.runLater(callback);
-                    } else {
-                        Platform.runLater(() -> errorCb.accept(error.getMessage()));
-                    }
-                });
+        UserReplica.getInstance().removeLocal(record.id);
+        whenInitialized(() -> {
+            FirebaseDatabase.getInstance().goOnline();
+            FirebaseDatabase.getInstance().getReference().updateChildren(withSummary(record, null), (error, ref) -> {
+                if (error == null) {
+                    System.out.println("Successfully deleted user " + record.id);
+                    Platform.runLater(callback);
+                } else {
+                    Platform.runLater(() -> errorCb.accept(error.getMessage()));
+                }
+            });
+        });
+    }
+    
+    /**
+     * Fill in the prescriptions, fingerprint and transaction record of a record from the user index, then call the
+     * callback (right away, if they're already here).
+     */
+    @Override
+    public void loadDetails(UserRecord record, Runnable callback, Consumer<String> errorCb) {
+        if (record.isDetailsLoaded()) {
+            callback.run();
+            return;
+        }
+        
+        whenInitialized(() -> {
+            FirebaseDatabase.getInstance().goOnline();
+            FirebaseDatabase.getInstance().getReference(USERS + "/" + record.id)
+                    .addListenerForSingleValueEvent(new ValueEventListener() {
+                        @Override
+                        public void onDataChange(DataSnapshot snapshot) {
+                            UserRecord full = snapshot.getValue(UserRecord.class);
+                            Platform.runLater(() -> {
+                                if (full == null) {
+                                    errorCb.accept("User " + record.id + " no longer exists");
+                                    return;
+                                }
+                                record.copyFrom(full);
+                                callback.run();
+                            });
+                        }
+                        
+                        @Override
+                        public void onCancelled(DatabaseError error) {
+                            Platform.runLater(() -> errorCb.accept(error.getMessage()));
+                        }
+                    });
+        });
+    }
+    
+    /**
+     * Create the supplied user records in the DB, along with their entries in the user index, a batch at a time.
+     * Each record is written as plain values (see UserRecord.getFields), so a batch's size can be estimated.
+     */
+    @Override
+    public void createAll(Collection<UserRecord> users, int batchSize, int maxInFlight,
+                          BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        UserReplica replica = UserReplica.getInstance();
+        for (UserRecord user : users) {
+            replica.putLocal(user);
+            user.clearChanges();
+        }
+        writeAll("created", users, user -> {
+            Map<String, Object> paths = new HashMap<>();
+            paths.put(USERS + "/" + user.id, user.getFields());
+            paths.put(USER_INDEX + "/" + user.id, user.getSummary());
+            paths.put(USER_FINGERPRINT + "/" + user.id, fingerprintEntry(user));
+            return paths;
+        }, batchSize, maxInFlight, resultCb, doneCb);
+    }
+    
+    /**
+     * Save the changed fields of the supplied user records, like update, a batch at a time. Records with nothing to
+     * save get their result right away.
+     */
+    @Override
+    public void updateAll(Collection<UserRecord> users, int batchSize, int maxInFlight,
+                          BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        UserReplica replica = UserReplica.getInstance();
+        Map<UserRecord, Map<String, Object>> changes = new IdentityHashMap<>();
+        for (UserRecord user : users) {
+            if (!user.isDetailsLoaded()) {
+                resultCb.accept(user, "The record of user " + user.id + " hasn't finished loading");
+                continue;
+            }
+            replica.putLocal(user);
+            Map<String, Object> userChanges = user.takeChanges();
+            if (userChanges.isEmpty()) resultCb.accept(user, null);
+            else changes.put(user, userChanges);
+        }
+        
+        writeAll("updated", new ArrayList<>(changes.keySet()), user -> {
+            Map<String, Object> paths = new HashMap<>();
+            for (Map.Entry<String, Object> change : changes.get(user).entrySet()) {
+                paths.put(USERS + "/" + user.id + "/" + change.getKey(), change.getValue());
+                addIndexPaths(user.id, change.getKey(), change.getValue(), paths);
+            }
+            return paths;
+        }, batchSize, maxInFlight, (user, error) -> {
+            if (error != null) user.restoreChanges(changes.get(user).keySet()); // so saving again retries them
+            resultCb.accept(user, error);
+        }, doneCb);
+    }
+    
+    /**
+     * Delete the supplied user records and their entries in the user index, a batch at a time.
+     */
+    @Override
+    public void deleteAll(Collection<UserRecord> users, int batchSize, int maxInFlight,
+                          BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        UserReplica replica = UserReplica.getInstance();
+        for (UserRecord user : users) {
+            replica.removeLocal(user.id);
+        }
+        writeAll("deleted", users, user -> withSummary(user, null), batchSize, maxInFlight, resultCb, doneCb);
+    }
+    
+    /** Write each user's paths (from paths) with a BatchWriter, logging how it went once it's done */
+    private static void writeAll(String verb, Collection<UserRecord> users,
+                                 Function<UserRecord, Map<String, Object>> paths, int batchSize, int maxInFlight,
+                                 BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        whenInitialized(() -> {
+            FirebaseDatabase.getInstance().goOnline();
+            DatabaseReference root = FirebaseDatabase.getInstance().getReference();
+            BatchWriter<UserRecord> writer = new BatchWriter<>((update, done) -> root.updateChildren(update,
+                    (error, ref) -> done.accept(error == null ? null : error.getMessage())),
+                    batchSize, maxInFlight, Platform::runLater);
+            
+            long start = System.nanoTime();
+            int[] failures = { 0 };
+            writer.writeAll(users, paths, (user, error) -> {
+                if (error != null) failures[0]++;
+                resultCb.accept(user, error);
+            }, () -> {
+                System.out.printf("[DbUserDao] Successfully %s %d of %d users in %d ms%n", verb,
+                        users.size() - failures[0], users.size(), (System.nanoTime() - start) / 1_000_000);
+                doneCb.run();
+            });
+        });
+    }
+    
+    /**
+     * The multi-path update that writes the given value (or null, to delete) as the user's record, along with the
+     * matching entry in the user index, so the two can't disagree.
+     */
+    private static Map<String, Object> withSummary(UserRecord user, UserRecord value) {
+        Map<String, Object> update = new HashMap<>();
+        update.put(USERS + "/" + user.id, value);
+        update.put(USER_INDEX + "/" + user.id, value == null ? null : value.getSummary());
+        update.put(USER_FINGERPRINT + "/" + user.id, value == null ? null : fingerprintEntry(value));
+        return update;
+    }
+    
+    /**
+     * Read a user's entry in the user index as a record without its details, taking its id from the key, since an
+     * entry can be written (by the Cloud Functions) before it has an id field. Returns null if the key isn't an id.
+     */
+    static UserRecord readSummary(DataSnapshot snapshot) {
+        int id;
+        try {
+            id = Integer.parseInt(snapshot.getKey());
+        } catch (NumberFormatException e) {
+            System.err.println("[DbUserDao] Skipping user index entry with a bad key: " + snapshot.getKey());
+            return null;
+        }
+        UserRecord record = snapshot.getValue(UserRecord.class);
+        if (record == null) return null;
+        record.id = id;
+        record.setDetailsLoaded(false);
+        record.clearChanges();
+        return record;
+    }
+    
+    /** The user's entry in the fingerprint index, or null (for no entry) if they have no fingerprint */
+    static String fingerprintEntry(UserRecord user) {
+        String fingerprint8 = user.getFingerprint8();
+        return fingerprint8.isEmpty() ? null : fingerprint8;
+    }
+    
+    /** Add the paths in the user and fingerprint indexes that a change to the given field of a user also writes */
+    static void addIndexPaths(int id, String field, Object value, Map<String, Object> paths) {
+        if (field.equals(UserRecord.NAME) || field.equals(UserRecord.DOCTORS)) {
+            paths.put(USER_INDEX + "/" + id + "/" + field, value);
+        } else if (field.equals(UserRecord.FINGERPRINT_8)) {
+            paths.put(USER_FINGERPRINT + "/" + id, "".equals(value) ? null : value);
+        }
     }
     
 }
@@ -0,0 +1,329 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Converts face fingerprints to and from the Base64 strings stored in the database's fingerprint field.
+ * A fingerprint's 128 components in [-1, 1] are each mapped to a signed 16-bit value, as the pharmacy client's
+ * pack_fingerprint does. Version 1 (what we write) is a version byte of 1 followed by those values little-endian;
+ * version 0 (what the pharmacy client and older doctor clients write) is the values alone.
+ * Version 2 is a smaller form with 8 bits per component: a version byte of 2, a little-endian float scale, then the
+ * components divided by the scale and rounded to signed bytes. The scale is per fingerprint, the largest component
+ * over 127, so each fingerprint uses the whole 8-bit range. It's stored beside the 16-bit form (see UserRecord).
+ * Base64 is encoded and decoded here directly to and from the 16-bit values, so nothing but the resulting string (when
+ * encoding) is allocated, and fingerprints decode straight into the caller's array, which may hold many of them.
+ */
+public final class FingerprintCodec {
+    
+    public static final int DIMENSIONS = 128;
+    
+    public static final int VERSION_0 = 0;
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final int CURRENT_VERSION = VERSION_1;
+    
+    // 2^15, less a hair so that a component of exactly 1 doesn't overflow
+    private static final double SCALE = 32767.999999999996;
+    
+    private static final int PAYLOAD_SIZE = DIMENSIONS * 2;
+    private static final int ENCODED_LENGTH = (PAYLOAD_SIZE + 1 + 2) / 3 * 4;
+    private static final int SIZE_8 = 1 + 4 + DIMENSIONS;
+    
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] ALPHABET_INDEX = new byte[128];
+    static {
+        Arrays.fill(ALPHABET_INDEX, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            ALPHABET_INDEX[ALPHABET[i]] = (byte) i;
+        }
+    }
+    
+    private FingerprintCodec() {}
+    
+    public static short quantize(double component) {
+        return (short) Math.floor(SCALE * component);
+    }
+    
+    public static double dequantize(short value) {
+        return value / SCALE;
+    }
+    
+    /**
+     * Quantize a fingerprint's components in [-1, 1] into the given array.
+     */
+    public static void quantize(double[] fingerprint, short[] target) {
+        checkLength(fingerprint.length);
+        for (int i = 0; i < DIMENSIONS; i++) {
+            target[i] = quantize(fingerprint[i]);
+        }
+    }
+    
+    /**
+     * Encode a quantized fingerprint in the current version.
+     */
+    public static String encode(short[] fingerprint) {
+        checkLength(fingerprint.length);
+        return encode(fingerprint, 0);
+    }
+    
+    /**
+     * Encode the quantized fingerprint at the given offset of the array in the current version.
+     */
+    public static String encode(short[] fingerprints, int offset) {
+        if (offset < 0 || offset + DIMENSIONS > fingerprints.length) {
+            throw new IndexOutOfBoundsException("No fingerprint at " + offset);
+        }
+        char[] chars = new char[ENCODED_LENGTH];
+        int length = PAYLOAD_SIZE + 1;
+        int out = 0;
+        for (int i = 0; i < length; i += 3) {
+            int bits = byteAt(fingerprints, offset, i) << 16;
+            if (i + 1 < length) bits |= byteAt(fingerprints, offset, i + 1) << 8;
+            if (i + 2 < length) bits |= byteAt(fingerprints, offset, i + 2);
+            chars[out++] = ALPHABET[bits >>> 18];
+            chars[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            chars[out++] = i + 1 < length ? ALPHABET[(bits >>> 6) & 0x3f] : '=';
+            chars[out++] = i + 2 < length ? ALPHABET[bits & 0x3f] : '=';
+        }
+        return new String(chars);
+    }
+    
+    /**
+     * Quantize and encode a fingerprint with components in [-1, 1] in the current version.
+     */
+    public static String encode(double[] fingerprint) {
+        short[] quantized = new short[DIMENSIONS];
+        quantize(fingerprint, quantized);
+        return encode(quantized);
+    }
+    
+    /**
+     * Write a quantized fingerprint, version byte first, at the target buffer's position, advancing it.
+     */
+    public static void encode(short[] fingerprint, ByteBuffer target) {
+        checkLength(fingerprint.length);
+        target.put((byte) CURRENT_VERSION);
+        for (int i = 0; i < DIMENSIONS; i++) {
+            target.put((byte) fingerprint[i]);
+            target.put((byte) (fingerprint[i] >> 8));
+        }
+    }
+    
+    /**
+     * Decode a fingerprint in any version into the given array from the given offset, and return its version.
+     * Throws IllegalArgumentException if it isn't a valid fingerprint.
+     */
+    public static int decode(CharSequence serialized, short[] target, int offset) {
+        int length = serialized.length();
+        while (length > 0 && serialized.charAt(length - 1) == '=') length--;
+        int bytes = length * 3 / 4;
+        int header;
+        if (bytes == PAYLOAD_SIZE) {
+            header = 0;
+        } else if (bytes == PAYLOAD_SIZE + 1) {
+            header = 1;
+        } else {
+            throw new IllegalArgumentException("Expected a 256 or 257 byte fingerprint, but it was " + bytes);
+        }
+        
+        int version = VERSION_0;
+        int i = 0;
+        int out = offset;
+        if (header == 1) {
+            // the version byte and the first value
+            int bits = group(serialized, 0);
+            version = bits >>> 16;
+            target[out++] = (short) (((bits >>> 8) & 0xff) | (bits & 0xff) << 8);
+            i = 4;
+        }
+        
+        // 8 characters are 6 bytes are 3 values
+        for (; i + 8 <= length; i += 8) {
+            int first = group(serialized, i);
+            int second = group(serialized, i + 4);
+            target[out++] = (short) ((first >>> 16) | (first & 0xff00));
+            target[out++] = (short) ((first & 0xff) | (second >>> 16) << 8);
+            target[out++] = (short) (((second >>> 8) & 0xff) | (second & 0xff) << 8);
+        }
+        
+        // then whatever's left over, a byte at a time
+        int low = 0;
+        boolean haveLow = false;
+        for (; i < length; i += 4) {
+            int chars = Math.min(4, length - i);
+            int bits = 0;
+            for (int j = 0; j < 4; j++) {
+                bits <<= 6;
+                if (j < chars) bits |= sextet(serialized.charAt(i + j));
+            }
+            for (int k = 0; k < chars - 1; k++) {
+                int value = (bits >>> (16 - 8 * k)) & 0xff;
+                if (haveLow) {
+                    target[out++] = (short) (low | value << 8);
+                } else {
+                    low = value;
+                }
+                haveLow = !haveLow;
+            }
+        }
+        if (header == 1 && version != VERSION_1) {
+            throw new IllegalArgumentException("Unsupported fingerprint version " + version);
+        }
+        return version;
+    }
+    
+    /**
+     * Decode a fingerprint read from the database, or return null if there's no valid fingerprint there.
+     */
+    public static short[] decode(String serialized) {
+        if (serialized == null || serialized.isEmpty()) return null;
+        short[] fingerprint = new short[DIMENSIONS];
+        try {
+            decode(serialized, fingerprint, 0);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return fingerprint;
+    }
+    
+    /**
+     * Decode a fingerprint written by encode(short[], ByteBuffer) from the source buffer's position into the given
+     * array from the given offset, advancing the buffer.
+     */
+    public static void decode(ByteBuffer source, short[] target, int offset) {
+        int version = source.get();
+        if (version != VERSION_1) throw new IllegalArgumentException("Unsupported fingerprint version " + version);
+        if (source.remaining() < PAYLOAD_SIZE) throw new IllegalArgumentException("Fingerprint is cut short");
+        for (int i = 0; i < DIMENSIONS; i++) {
+            int low = source.get() & 0xff;
+            target[offset + i] = (short) (low | source.get() << 8);
+        }
+    }
+    
+    /**
+     * Decode many fingerprints into one array, one after the other: the i-th fingerprint goes at i * 128. Returns
+     * which ones were valid; the others are left as they were in the array.
+     */
+    public static BitSet decodeAll(List<? extends CharSequence> serialized, short[] target) {
+        if (target.length < serialized.size() * DIMENSIONS) {
+            throw new IllegalArgumentException("Not enough room for " + serialized.size() + " fingerprints");
+        }
+        BitSet valid = new BitSet(serialized.size());
+        for (int i = 0; i < serialized.size(); i++) {
+            CharSequence fingerprint = serialized.get(i);
+            if (fingerprint == null || fingerprint.length() == 0) continue;
+            try {
+                decode(fingerprint, target, i * DIMENSIONS);
+                valid.set(i);
+            } catch (IllegalArgumentException ignored) {
+                // just leave it out
+            }
+        }
+        return valid;
+    }
+    
+    /**
+     * Quantize a 16-bit fingerprint further, to 8 bits per component, into the given array from the given offset.
+     * Returns the scale: component i is about target[offset + i] * scale in 16-bit units.
+     */
+    public static float quantize8(short[] fingerprint, byte[] target, int offset) {
+        checkLength(fingerprint.length);
+        int max = 0;
+        for (short value : fingerprint) {
+            max = Math.max(max, Math.abs(value));
+        }
+        float scale = max == 0 ? 1 : max / 127f;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            target[offset + i] = (byte) Math.round(fingerprint[i] / scale);
+        }
+        return scale;
+    }
+    
+    /**
+     * Encode a 16-bit fingerprint in the 8-bit version 2 form.
+     */
+    public static String encode8(short[] fingerprint) {
+        ByteBuffer bytes = ByteBuffer.allocate(SIZE_8).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.put((byte) VERSION_2);
+        bytes.putFloat(quantize8(fingerprint, bytes.array(), 5));
+        return Base64.getEncoder().encodeToString(bytes.array());
+    }
+    
+    /**
+     * Decode an 8-bit fingerprint into the given array from the given offset, and return its scale (see quantize8).
+     * Throws IllegalArgumentException if it isn't a valid 8-bit fingerprint.
+     */
+    public static float decode8(String serialized, byte[] target, int offset) {
+        ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(serialized)).order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.remaining() != SIZE_8 || bytes.get() != VERSION_2) {
+            throw new IllegalArgumentException("Not an 8-bit fingerprint");
+        }
+        float scale = bytes.getFloat();
+        if (!(scale > 0) || Float.isInfinite(scale)) throw new IllegalArgumentException("Bad fingerprint scale");
+        bytes.get(target, offset, DIMENSIONS);
+        return scale;
+    }
+    
+    /**
+     * Decode an 8-bit fingerprint back to 16-bit values, close to the ones it was made from, or return null if there's
+     * no valid 8-bit fingerprint there.
+     */
+    public static short[] decode8(String serialized) {
+        if (serialized == null || serialized.isEmpty()) return null;
+        byte[] components = new byte[DIMENSIONS];
+        float scale;
+        try {
+            scale = decode8(serialized, components, 0);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        short[] fingerprint = new short[DIMENSIONS];
+        for (int i = 0; i < DIMENSIONS; i++) {
+            fingerprint[i] = (short) Math.round(components[i] * scale);
+        }
+        return fingerprint;
+    }
+    
+    /**
+     * Encode the given number of quantized fingerprints, one after the other in the array, in the current version.
+     */
+    public static List<String> encodeAll(short[] fingerprints, int count) {
+        List<String> encoded = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            encoded.add(encode(fingerprints, i * DIMENSIONS));
+        }
+        return encoded;
+    }
+    
+    /** The i-th byte of the current version's encoding of the fingerprint at the offset, unsigned. */
+    private static int byteAt(short[] fingerprints, int offset, int i) {
+        if (i == 0) return CURRENT_VERSION;
+        int payload = i - 1;
+        short value = fingerprints[offset + payload / 2];
+        return ((payload & 1) == 0 ? value : value >> 8) & 0xff;
+    }
+    
+    /** The 24 bits of the 4 Base64 characters from the given index. */
+    private static int group(CharSequence serialized, int i) {
+        return sextet(serialized.charAt(i)) << 18 | sextet(serialized.charAt(i + 1)) << 12
+                | sextet(serialized.charAt(i + 2)) << 6 | sextet(serialized.charAt(i + 3));
+    }
+    
+    private static int sextet(char c) {
+        int value = c < 128 ? ALPHABET_INDEX[c] : -1;
+        if (value < 0) throw new IllegalArgumentException("Illegal Base64 character '" + c + "' in fingerprint");
+        return value;
+    }
+    
+    private static void checkLength(int length) {
+        if (length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+    }
+    
+}
@@ -0,0 +1,187 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import ca.uwaterloo.arka.pharmacy.match.FingerprintMatcher;
+import ca.uwaterloo.arka.pharmacy.match.FingerprintStore;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every patient's face fingerprint, for spotting a patient being registered twice, kept in a FingerprintStore in
+ * LocalUserStore's data directory so it's there from the moment the app starts.
+ * It's kept in step with /arka/userFingerprint, which holds each user's fingerprint in the 8-bit form (a Cloud
+ * Function keeps it up to date whoever writes the user, and the DAOs write it along with the user), much like
+ * UserReplica is with the user index: the whole of it is downloaded in the background once Firebase is up, fingerprints
+ * that are no longer there are removed, and child events keep it current after that. The DAOs also put the
+ * fingerprints of the records they write (through UserReplica.putLocal and removeLocal) right away, and fingerprints
+ * of records with changes queued here are left alone until those reach the DB.
+ * The fingerprints are all in the 8-bit form, decoded, so that those written here match those downloaded exactly.
+ * Thread-safe; database events are applied on a thread of its own.
+ */
+final class FingerprintReplica {
+    
+    private static final long RETRY_MS = 60_000;
+    
+    private static FingerprintReplica instance = null;
+    
+    private final FingerprintStore store;
+    private final ScheduledExecutorService events = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fingerprint-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // only used on the events thread
+    private DatabaseReference ref = null;
+    private ChildEventListener childListener = null;
+    private Set<Integer> seen = null; // the ids downloaded so far, during a download
+    
+    static synchronized FingerprintReplica getInstance() {
+        if (instance == null) {
+            FingerprintReplica replica = new FingerprintReplica(FingerprintStore.open(LocalUserStore.dataDirectory()));
+            DbUserDao.whenInitialized(() -> replica.events.execute(replica::listen));
+            instance = replica;
+        }
+        return instance;
+    }
+    
+    /** Save the index and close the store. Called when the application exits. */
+    static synchronized void shutdownInstance() {
+        if (instance == null) return;
+        instance.events.shutdownNow();
+        try {
+            instance.store.close();
+        } catch (IOException e) {
+            System.err.println("[FingerprintReplica] Could not save the fingerprint index: " + e);
+        }
+        instance = null;
+    }
+    
+    private FingerprintReplica(FingerprintStore store) {
+        this.store = store;
+    }
+    
+    FingerprintMatcher getMatcher() {
+        return store;
+    }
+    
+    /** Put the fingerprint of a record we've just written ourselves, or take it out if the record has none */
+    void putLocal(UserRecord record) {
+        if (!record.isDetailsLoaded()) return; // its fingerprint isn't here to put
+        short[] fingerprint = FingerprintCodec.decode8(record.getFingerprint8());
+        if (fingerprint != null) store.put(record.id, fingerprint);
+        else store.remove(record.id);
+    }
+    
+    /** Take out the fingerprint of a record we've just deleted ourselves */
+    void removeLocal(int id) {
+        store.remove(id);
+    }
+    
+    private void listen() {
+        if (ref != null) return;
+        System.out.println("[FingerprintReplica] Downloading fingerprints");
+        long start = System.nanoTime();
+        seen = new HashSet<>();
+        FirebaseDatabase.getInstance().goOnline();
+        ref = FirebaseDatabase.getInstance().getReference(DbUserDao.USER_FINGERPRINT);
+        childListener = new ChildEventListener() {
+            @Override
+            public void onChildAdded(DataSnapshot snapshot, String previousChildName) {
+                events.execute(() -> downloaded(snapshot));
+            }
+            
+            @Override
+            public void onChildChanged(DataSnapshot snapshot, String previousChildName) {
+                events.execute(() -> downloaded(snapshot));
+            }
+            
+            @Override
+            public void onChildRemoved(DataSnapshot snapshot) {
+                events.execute(() -> {
+                    Integer id = id(snapshot);
+                    if (id != null && !LocalUserStore.getInstance().isQueued(id)) store.remove(id);
+                });
+            }
+            
+            @Override
+            public void onChildMoved(DataSnapshot snapshot, String previousChildName) {}
+            
+            @Override
+            public void onCancelled(DatabaseError error) {
+                events.execute(() -> failed(error.getMessage()));
+            }
+        };
+        ref.addChildEventListener(childListener);
+        
+        // sent after all of the initial child events, like in UserReplica
+        ref.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                events.execute(() -> {
+                    if (seen == null) return;
+                    removeUnseen();
+                    System.out.printf("[FingerprintReplica] Synced %d fingerprints in %d ms%n", store.size(),
+                            (System.nanoTime() - start) / 1_000_000);
+                });
+            }
+            
+            @Override
+            public void onCancelled(DatabaseError error) {
+                events.execute(() -> failed(error.getMessage()));
+            }
+        });
+    }
+    
+    private void downloaded(DataSnapshot snapshot) {
+        Integer id = id(snapshot);
+        if (id == null) return;
+        if (seen != null) seen.add(id);
+        if (LocalUserStore.getInstance().isQueued(id)) return; // the change made here is newer
+        
+        Object value = snapshot.getValue();
+        short[] fingerprint = value instanceof String ? FingerprintCodec.decode8((String) value) : null;
+        if (fingerprint != null) store.put(id, fingerprint);
+        else store.remove(id);
+    }
+    
+    private static Integer id(DataSnapshot snapshot) {
+        try {
+            return Integer.parseInt(snapshot.getKey());
+        } catch (NumberFormatException e) {
+            System.err.println("[FingerprintReplica] Skipping the fingerprint of unknown user " + snapshot.getKey());
+            return null;
+        }
+    }
+    
+    /** Remove the fingerprints that weren't downloaded, since they were deleted while we weren't listening */
+    private void removeUnseen() {
+        LocalUserStore local = LocalUserStore.getInstance();
+        for (int id : store.ids()) {
+            if (!seen.contains(id) && !local.isQueued(id)) store.remove(id);
+        }
+        seen = null;
+    }
+    
+    private void failed(String message) {
+        if (ref == null) return; // both listeners get cancelled
+        System.err.println("[FingerprintReplica] Lost the fingerprints (" + message + "); trying again in "
+                + RETRY_MS / 1000 + " s");
+        ref.removeEventListener(childListener);
+        ref = null;
+        childListener = null;
+        seen = null;
+        events.schedule(this::listen, RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+    
+}
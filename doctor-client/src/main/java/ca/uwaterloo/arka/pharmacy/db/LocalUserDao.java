@@ -0,0 +1,221 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import javafx.application.Platform;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A UserDao that works without the network. Reads come from UserReplica and LocalUserStore, which have everything
+ * that's been downloaded before; changes are saved to LocalUserStore, which reports them saved once they're on disk,
+ * and sent to the DB in the background by SyncQueue, in the order they were made, even if that's after a restart.
+ */
+class LocalUserDao extends DbUserDao {
+    
+    /**
+     * Initialize Firebase, then send whatever was left queued when the app last closed.
+     */
+    @Override
+    public void initialize() throws IOException {
+        super.initialize();
+        SyncQueue.getInstance().kick();
+    }
+    
+    /**
+     * Save the new user record here, and queue it (and its entry in the user index) to be created in the DB.
+     */
+    @Override
+    public void create(UserRecord user, Runnable callback, Consumer<String> errorCb) {
+        queue(List.of(createChange(user)), callback, errorCb);
+    }
+    
+    /**
+     * Save the fields of the user record that have changed here, and queue them (and its entry in the user index, if
+     * that's changed) to be written to the DB. See DbUserDao.update.
+     */
+    @Override
+    public void update(UserRecord user, Runnable callback, Consumer<String> errorCb) {
+        if (!user.isDetailsLoaded()) {
+            errorCb.accept("The record of user " + user.id + " hasn't finished loading");
+            return;
+        }
+        
+        LocalUserStore.Change change = updateChange(user);
+        if (change == null) {
+            callback.run();
+            return;
+        }
+        queue(List.of(change), callback, error -> {
+            user.restoreChanges(change.fields.keySet()); // so saving again retries them
+            errorCb.accept(error);
+        });
+    }
+    
+    /**
+     * Delete the user record here, and queue it (and its entry in the user index) to be deleted from the DB.
+     */
+    @Override
+    public void delete(UserRecord record, Runnable callback, Consumer<String> errorCb) {
+        queue(List.of(deleteChange(record)), callback, errorCb);
+    }
+    
+    /**
+     * Save the new user records here, and queue them to be created in the DB, which SyncQueue does in batches. The
+     * records are all saved to disk together, so they all get the same result; batchSize and maxInFlight don't apply.
+     */
+    @Override
+    public void createAll(Collection<UserRecord> users, int batchSize, int maxInFlight,
+                          BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        List<LocalUserStore.Change> changes = new ArrayList<>(users.size());
+        for (UserRecord user : users) {
+            changes.add(createChange(user));
+        }
+        queueAll(users, changes, resultCb, doneCb);
+    }
+    
+    /**
+     * Save the changes to the user records here, and queue them to be written to the DB, like createAll. Records whose
+     * details haven't been loaded fail, and records with nothing to save get their result right away.
+     */
+    @Override
+    public void updateAll(Collection<UserRecord> users, int batchSize, int maxInFlight,
+                          BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        Map<UserRecord, LocalUserStore.Change> changes = new IdentityHashMap<>();
+        for (UserRecord user : users) {
+            if (!user.isDetailsLoaded()) {
+                resultCb.accept(user, "The record of user " + user.id + " hasn't finished loading");
+                continue;
+            }
+            LocalUserStore.Change change = updateChange(user);
+            if (change == null) {
+                resultCb.accept(user, null);
+                continue;
+            }
+            changes.put(user, change);
+        }
+        
+        queueAll(changes.keySet(), new ArrayList<>(changes.values()), (user, error) -> {
+            if (error != null) user.restoreChanges(changes.get(user).fields.keySet());
+            resultCb.accept(user, error);
+        }, doneCb);
+    }
+    
+    /**
+     * Delete the user records here, and queue them to be deleted from the DB, like createAll.
+     */
+    @Override
+    public void deleteAll(Collection<UserRecord> users, int batchSize, int maxInFlight,
+                          BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        List<LocalUserStore.Change> changes = new ArrayList<>(users.size());
+        for (UserRecord user : users) {
+            changes.add(deleteChange(user));
+        }
+        queueAll(users, changes, resultCb, doneCb);
+    }
+    
+    /**
+     * Fill in the rest of the record from what's saved here, if it's here, and then from the DB in the background,
+     * in case it's changed elsewhere since; otherwise, load it from the DB like DbUserDao.loadDetails.
+     */
+    @Override
+    public void loadDetails(UserRecord record, Runnable callback, Consumer<String> errorCb) {
+        if (record.isDetailsLoaded()) {
+            callback.run();
+            return;
+        }
+        
+        LocalUserStore store = LocalUserStore.getInstance();
+        Map<String, Object> saved = store.get(record.id);
+        if (saved == null || !saved.containsKey(UserRecord.FINGERPRINT)) {
+            super.loadDetails(record, () -> {
+                store.putRemote(record.id, record.getFields());
+                callback.run();
+            }, errorCb);
+            return;
+        }
+        
+        record.copyFrom(UserRecord.fromFields(saved));
+        callback.run();
+        
+        UserRecord fresh = UserRecord.fromFields(record.getSummary());
+        super.loadDetails(fresh, () -> {
+            if (store.isQueued(record.id)) return; // the changes made here are newer
+            record.copyFrom(fresh);
+            store.putRemote(record.id, fresh.getFields());
+        }, error -> System.err.println("[LocalUserDao] Couldn't refresh user " + record.id + ": " + error));
+    }
+    
+    @Override
+    public void addConflictListener(Consumer<String> listener) {
+        SyncQueue.getInstance().addConflictListener(listener);
+    }
+    
+    private static LocalUserStore.Change createChange(UserRecord user) {
+        UserReplica.getInstance().putLocal(user);
+        user.clearChanges(); // it's all being written
+        Map<String, Object> fields = user.getFields();
+        Map<String, Object> paths = new HashMap<>();
+        paths.put(USERS + "/" + user.id, fields);
+        paths.put(USER_INDEX + "/" + user.id, user.getSummary());
+        paths.put(USER_FINGERPRINT + "/" + user.id, fingerprintEntry(user));
+        return new LocalUserStore.Change(user.id, fields, paths, null);
+    }
+    
+    /** The change saving the user's changed fields, or null if none have changed */
+    private static LocalUserStore.Change updateChange(UserRecord user) {
+        UserReplica.getInstance().putLocal(user);
+        Map<String, Object> changes = user.takeChanges();
+        if (changes.isEmpty()) return null;
+        
+        Map<String, Object> saved = LocalUserStore.getInstance().get(user.id);
+        Map<String, Object> base = new HashMap<>();
+        Map<String, Object> paths = new HashMap<>();
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            base.put(change.getKey(), saved == null ? null : saved.get(change.getKey()));
+            paths.put(USERS + "/" + user.id + "/" + change.getKey(), change.getValue());
+            addIndexPaths(user.id, change.getKey(), change.getValue(), paths);
+        }
+        return new LocalUserStore.Change(user.id, changes, paths, base);
+    }
+    
+    private static LocalUserStore.Change deleteChange(UserRecord user) {
+        UserReplica.getInstance().removeLocal(user.id);
+        Map<String, Object> paths = new HashMap<>();
+        paths.put(USERS + "/" + user.id, null);
+        paths.put(USER_INDEX + "/" + user.id, null);
+        paths.put(USER_FINGERPRINT + "/" + user.id, null);
+        return new LocalUserStore.Change(user.id, null, paths, null);
+    }
+    
+    /** Queue the changes, and call the callback once they're on disk (or the error callback), then send them */
+    private static void queue(List<LocalUserStore.Change> changes, Runnable callback, Consumer<String> errorCb) {
+        LocalUserStore.getInstance().queue(changes, error -> Platform.runLater(() -> {
+            if (error == null) callback.run();
+            else errorCb.accept("Couldn't save the change on this computer: " + error);
+        }));
+        SyncQueue.getInstance().kick();
+    }
+    
+    private static void queueAll(Collection<UserRecord> users, List<LocalUserStore.Change> changes,
+                                 BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        queue(changes, () -> {
+            for (UserRecord user : users) {
+                resultCb.accept(user, null);
+            }
+            doneCb.run();
+        }, error -> {
+            for (UserRecord user : users) {
+                resultCb.accept(user, error);
+            }
+            doneCb.run();
+        });
+    }
+    
+}
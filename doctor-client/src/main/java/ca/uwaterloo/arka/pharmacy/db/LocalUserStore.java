@@ -0,0 +1,437 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The doctor client's own copy of the user records, kept on disk in the user's data directory so that they can be
+ * listed and shown without the network, along with the changes made here that haven't reached the DB yet, in the
+ * order they were made (SyncQueue sends them).
+ * On disk, it's a snapshot of everything plus a log of what's happened since, one JSON object per line, appended to as
+ * things change; once the log gets as long as the snapshot, it's folded into a new snapshot. Changes made here are
+ * only reported saved once they're synced to disk. Records from the DB aren't, since they can be downloaded again.
+ * Records are kept as plain values like UserRecord.getFields returns, with just the summary fields for records whose
+ * details haven't been loaded. Thread-safe; the files are written on a thread of their own.
+ */
+final class LocalUserStore {
+    
+    private static final String SNAPSHOT = "users.snapshot";
+    private static final String LOG = "users.log";
+    private static final int MIN_COMPACT_ENTRIES = 10_000;
+    
+    // nulls are kept, since a null in a change's paths deletes
+    private static final Gson GSON = new GsonBuilder().serializeNulls().disableHtmlEscaping().create();
+    
+    private static LocalUserStore instance = null;
+    
+    private final Path directory;
+    private final Map<Integer, Map<String, Object>> users = new HashMap<>();
+    private final TreeMap<Long, Change> queue = new TreeMap<>(); // by sequence number
+    private final Map<Integer, Integer> queuedById = new HashMap<>(); // how many changes each user has queued
+    private long nextSeq = 0;
+    private boolean complete = false; // whether every record has been downloaded at some point
+    private int logEntries = 0;
+    
+    private final ExecutorService disk = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "local-user-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // only used on the disk thread
+    private FileOutputStream logFile = null;
+    private Writer log = null;
+    
+    /** A change made here: the new fields of a user (or null if it's been deleted) and the DB paths to write */
+    static final class Change {
+        
+        long seq = -1; // set once it's queued
+        final int id;
+        final Map<String, Object> fields;
+        final Map<String, Object> paths;
+        final Map<String, Object> base; // the changed fields' values before, or null if they weren't looked at
+        
+        Change(int id, Map<String, Object> fields, Map<String, Object> paths, Map<String, Object> base) {
+            this.id = id;
+            this.fields = fields;
+            this.paths = paths;
+            this.base = base;
+        }
+        
+    }
+    
+    /** Return the store, reading it from disk the first time. */
+    static synchronized LocalUserStore getInstance() {
+        if (instance == null) {
+            instance = new LocalUserStore(dataDirectory());
+            instance.load();
+        }
+        return instance;
+    }
+    
+    /** Finish writing to disk. Called when the application exits. */
+    static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+    
+    /** Where the files go: the arka.dataDir system property, or ~/.smart-pharmacy */
+    static Path dataDirectory() {
+        String override = System.getProperty("arka.dataDir");
+        return override != null ? Paths.get(override) : Paths.get(System.getProperty("user.home"), ".smart-pharmacy");
+    }
+    
+    private LocalUserStore(Path directory) {
+        this.directory = directory;
+    }
+    
+    /** Whether every record has been downloaded at some point, so this has all of them but recent changes */
+    synchronized boolean isComplete() {
+        return complete;
+    }
+    
+    synchronized void setComplete() {
+        if (complete) return;
+        complete = true;
+        JsonObject entry = new JsonObject();
+        entry.addProperty("complete", true);
+        append(List.of(entry), false, null);
+    }
+    
+    /** The fields of every record */
+    synchronized List<Map<String, Object>> getAll() {
+        return new ArrayList<>(users.values());
+    }
+    
+    /** The fields of the record with the given id, or null */
+    synchronized Map<String, Object> get(int id) {
+        return users.get(id);
+    }
+    
+    /** Whether changes to the record with the given id are waiting to go to the DB */
+    synchronized boolean isQueued(int id) {
+        return queuedById.containsKey(id);
+    }
+    
+    /** The ids of the records with changes waiting to go to the DB */
+    synchronized Set<Integer> getQueuedIds() {
+        return new HashSet<>(queuedById.keySet());
+    }
+    
+    /**
+     * Record fields of a record as they are in the DB, unless there are changes to it here that haven't gone yet,
+     * which would be undone.
+     */
+    synchronized void putRemote(int id, Map<String, Object> fields) {
+        if (queuedById.containsKey(id)) return;
+        Map<String, Object> plain = plain(fields);
+        Map<String, Object> existing = users.get(id);
+        if (existing != null && existing.entrySet().containsAll(plain.entrySet())) return; // nothing new
+        
+        merge(id, plain);
+        JsonObject entry = new JsonObject();
+        entry.addProperty("put", id);
+        entry.add("fields", GSON.toJsonTree(plain));
+        append(List.of(entry), false, null);
+    }
+    
+    /** Forget a record that's gone from the DB, unless there are changes to it here that haven't gone yet */
+    synchronized void removeRemote(int id) {
+        if (queuedById.containsKey(id) || users.remove(id) == null) return;
+        JsonObject entry = new JsonObject();
+        entry.addProperty("remove", id);
+        append(List.of(entry), false, null);
+    }
+    
+    /**
+     * Apply changes made here, and queue them to go to the DB. Call done (on another thread) with null once they're
+     * safely on disk, or with an error message if they couldn't be written.
+     */
+    synchronized void queue(Collection<Change> changes, Consumer<String> done) {
+        List<JsonObject> entries = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            change.seq = nextSeq++;
+            apply(change);
+            entries.add(toJson(change, "queue"));
+        }
+        append(entries, true, done);
+    }
+    
+    /**
+     * The changes at the front of the queue, up to maxChanges of them or maxBytes of paths (but at least one), that
+     * can go in one multi-path update: no two change the same user, since their paths might overlap.
+     */
+    synchronized List<Change> nextBatch(int maxChanges, long maxBytes) {
+        List<Change> batch = new ArrayList<>();
+        Set<Integer> ids = new HashSet<>();
+        long bytes = 0;
+        for (Change change : queue.values()) {
+            long changeBytes = BatchWriter.estimateSize(change.paths);
+            if (batch.size() == maxChanges || !ids.add(change.id)) break;
+            if (!batch.isEmpty() && bytes + changeBytes > maxBytes) break;
+            batch.add(change);
+            bytes += changeBytes;
+        }
+        return batch;
+    }
+    
+    /** Take changes off the queue, now that they're in the DB (or never will be) */
+    synchronized void ack(Collection<Change> changes) {
+        List<JsonObject> entries = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            if (queue.remove(change.seq) == null) continue;
+            queuedById.computeIfPresent(change.id, (id, count) -> count == 1 ? null : count - 1);
+            JsonObject entry = new JsonObject();
+            entry.addProperty("ack", change.seq);
+            entries.add(entry);
+        }
+        if (!entries.isEmpty()) append(entries, false, null);
+    }
+    
+    synchronized int getQueuedCount() {
+        return queue.size();
+    }
+    
+    private void apply(Change change) {
+        if (change.fields == null) users.remove(change.id);
+        else merge(change.id, plain(change.fields));
+        enqueue(change);
+    }
+    
+    private void enqueue(Change change) {
+        // a change can be read twice, from a snapshot and from the log written before it; count it once
+        if (queue.putIfAbsent(change.seq, change) != null) return;
+        queuedById.merge(change.id, 1, Integer::sum);
+        nextSeq = Math.max(nextSeq, change.seq + 1);
+    }
+    
+    private void merge(int id, Map<String, Object> fields) {
+        Map<String, Object> existing = users.get(id);
+        if (existing == null) {
+            users.put(id, Collections.unmodifiableMap(fields));
+            return;
+        }
+        Map<String, Object> merged = new HashMap<>(existing);
+        merged.putAll(fields);
+        users.put(id, Collections.unmodifiableMap(merged));
+    }
+    
+    /** The same values as they'd be read back from disk, so that they can be compared with what's here */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> plain(Map<String, Object> fields) {
+        return (Map<String, Object>) UserArchive.toValue(GSON.toJsonTree(fields));
+    }
+    
+    private static JsonObject toJson(Change change, String kind) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty(kind, change.seq);
+        entry.addProperty("id", change.id);
+        entry.add("fields", GSON.toJsonTree(change.fields));
+        entry.add("paths", GSON.toJsonTree(change.paths));
+        entry.add("base", GSON.toJsonTree(change.base));
+        return entry;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static Change fromJson(JsonObject entry, String kind) {
+        Change change = new Change(entry.get("id").getAsInt(),
+                (Map<String, Object>) UserArchive.toValue(entry.get("fields")),
+                (Map<String, Object>) UserArchive.toValue(entry.get("paths")),
+                (Map<String, Object>) UserArchive.toValue(entry.get("base")));
+        change.seq = entry.get(kind).getAsLong();
+        return change;
+    }
+    
+    // disk
+    
+    private void load() {
+        long start = System.nanoTime();
+        try {
+            Files.createDirectories(directory);
+            replay(directory.resolve(SNAPSHOT));
+            logEntries = replay(directory.resolve(LOG));
+        } catch (IOException e) {
+            System.err.println("[LocalUserStore] Couldn't read the local user records: " + e.getMessage());
+        }
+        System.out.printf("[LocalUserStore] Loaded %d user records and %d unsynced changes from %s in %d ms%n",
+                users.size(), queue.size(), directory, (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    /** Apply the entries in the file, if it's there, and return how many there were */
+    private int replay(Path file) throws IOException {
+        if (!Files.exists(file)) return 0;
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isBlank()) continue;
+                try {
+                    replay(JsonParser.parseString(line).getAsJsonObject());
+                    count++;
+                } catch (JsonParseException | IllegalStateException | ClassCastException | NullPointerException e) {
+                    // most likely the last line, cut off by a crash while it was being written
+                    System.err.println("[LocalUserStore] Skipping unreadable line in " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return count;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void replay(JsonObject entry) {
+        if (entry.has("put")) {
+            merge(entry.get("put").getAsInt(), (Map<String, Object>) UserArchive.toValue(entry.get("fields")));
+        } else if (entry.has("remove")) {
+            users.remove(entry.get("remove").getAsInt());
+        } else if (entry.has("queue")) {
+            apply(fromJson(entry, "queue")); // a change made here
+        } else if (entry.has("pending")) {
+            enqueue(fromJson(entry, "pending")); // a change in a snapshot, already applied to its records
+        } else if (entry.has("ack")) {
+            Change change = queue.remove(entry.get("ack").getAsLong());
+            if (change != null) queuedById.computeIfPresent(change.id, (id, count) -> count == 1 ? null : count - 1);
+        } else if (entry.has("complete")) {
+            complete = entry.get("complete").getAsBoolean();
+        }
+        if (entry.has("nextSeq")) nextSeq = Math.max(nextSeq, entry.get("nextSeq").getAsLong());
+    }
+    
+    /** Append the entries to the log on the disk thread, syncing it and calling done if asked to */
+    private void append(List<JsonObject> entries, boolean sync, Consumer<String> done) {
+        List<String> lines = new ArrayList<>(entries.size());
+        for (JsonObject entry : entries) {
+            lines.add(GSON.toJson(entry));
+        }
+        disk.execute(() -> {
+            String error = null;
+            try {
+                if (log == null) {
+                    logFile = new FileOutputStream(directory.resolve(LOG).toFile(), true);
+                    log = new BufferedWriter(new OutputStreamWriter(logFile, StandardCharsets.UTF_8), 1 << 16);
+                }
+                for (String line : lines) {
+                    log.write(line);
+                    log.write('\n');
+                }
+                log.flush();
+                if (sync) logFile.getFD().sync();
+            } catch (IOException e) {
+                System.err.println("[LocalUserStore] Couldn't write to the log: " + e.getMessage());
+                error = e.getMessage();
+            }
+            if (done != null) done.accept(error);
+        });
+        
+        logEntries += entries.size();
+        if (logEntries > Math.max(MIN_COMPACT_ENTRIES, users.size() + queue.size())) compact();
+    }
+    
+    /** Write everything to a new snapshot on the disk thread, and start a new log */
+    private void compact() {
+        logEntries = 0;
+        // the records' fields are never changed, only replaced, so they can be written out as they are now later on
+        List<Map.Entry<Integer, Map<String, Object>>> userCopy = new ArrayList<>(users.size());
+        for (Map.Entry<Integer, Map<String, Object>> user : users.entrySet()) {
+            userCopy.add(Map.entry(user.getKey(), user.getValue()));
+        }
+        List<JsonObject> pending = new ArrayList<>(queue.size());
+        for (Change change : queue.values()) {
+            pending.add(toJson(change, "pending"));
+        }
+        JsonObject header = new JsonObject();
+        header.addProperty("complete", complete);
+        header.addProperty("nextSeq", nextSeq);
+        
+        disk.execute(() -> {
+            long start = System.nanoTime();
+            Path temp = directory.resolve(SNAPSHOT + ".tmp");
+            try {
+                try (FileOutputStream out = new FileOutputStream(temp.toFile());
+                     Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16)) {
+                    writer.write(GSON.toJson(header));
+                    writer.write('\n');
+                    for (Map.Entry<Integer, Map<String, Object>> user : userCopy) {
+                        JsonObject entry = new JsonObject();
+                        entry.addProperty("put", user.getKey());
+                        entry.add("fields", GSON.toJsonTree(user.getValue()));
+                        writer.write(GSON.toJson(entry));
+                        writer.write('\n');
+                    }
+                    for (JsonObject entry : pending) {
+                        writer.write(GSON.toJson(entry));
+                        writer.write('\n');
+                    }
+                    writer.flush();
+                    out.getFD().sync();
+                }
+                Files.move(temp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                
+                // everything in the log is in the snapshot now
+                closeLog();
+                logFile = new FileOutputStream(directory.resolve(LOG).toFile(), false);
+                log = new BufferedWriter(new OutputStreamWriter(logFile, StandardCharsets.UTF_8), 1 << 16);
+                System.out.printf("[LocalUserStore] Compacted %d user records in %d ms%n", userCopy.size(),
+                        (System.nanoTime() - start) / 1_000_000);
+            } catch (IOException e) {
+                // the old snapshot and the log still have everything
+                System.err.println("[LocalUserStore] Couldn't write a snapshot: " + e.getMessage());
+            }
+        });
+    }
+    
+    private void closeLog() throws IOException {
+        if (log != null) log.close();
+        log = null;
+        logFile = null;
+    }
+    
+    private void shutdown() {
+        disk.execute(() -> {
+            try {
+                closeLog();
+            } catch (IOException e) {
+                System.err.println("[LocalUserStore] Couldn't close the log: " + e.getMessage());
+            }
+        });
+        disk.shutdown();
+        try {
+            if (!disk.awaitTermination(5, TimeUnit.SECONDS)) {
+                System.err.println("[LocalUserStore] Gave up waiting for the disk");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+}
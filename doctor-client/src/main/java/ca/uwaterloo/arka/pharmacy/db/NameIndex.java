@@ -0,0 +1,235 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Finds patients by name as it's typed. Names are split into tokens (words), which are lowercased and stripped of
+ * accents, so a query typed without accents finds names written with them. A query matches a name if every one of
+ * its tokens is the start of a different token of the name, or, if fuzzy matching is on and nothing matches exactly,
+ * the start of a token with one typo (a letter missed, added, changed or swapped; not the first letter).
+ * Results are ranked: names with a token equal to the query first, then by the matching token, then by name.
+ * The index is a sorted map from each token to the ids of the names containing it, sorted by name, so a query is a
+ * walk along the range of tokens starting with it that stops once it has enough results. Thread-safe.
+ */
+final class NameIndex {
+    
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    
+    // shortest query token we'll look for typos in; shorter ones match too much to be useful
+    private static final int FUZZY_MIN_LENGTH = 3;
+    
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final TreeMap<String, Postings> postings = new TreeMap<>();
+    
+    /** Add the patient with the given id and name, or change their name if they're already here. */
+    synchronized void put(int id, String name) {
+        Entry old = entries.get(id);
+        if (old != null) {
+            if (old.name.equals(name)) return;
+            remove(id);
+        }
+        
+        Entry entry = new Entry(id, name);
+        entries.put(id, entry);
+        for (String token : entry.tokens) {
+            postings.computeIfAbsent(token, t -> new Postings()).add(entry);
+        }
+    }
+    
+    synchronized void remove(int id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) return;
+        for (String token : entry.tokens) {
+            Postings list = postings.get(token);
+            if (list == null) continue; // the same token twice in a name
+            list.remove(entry);
+            if (list.size == 0) postings.remove(token);
+        }
+    }
+    
+    synchronized void clear() {
+        entries.clear();
+        postings.clear();
+    }
+    
+    /** The name the patient with the given id was last put with, or null if they're not here */
+    synchronized String getName(int id) {
+        Entry entry = entries.get(id);
+        return entry == null ? null : entry.name;
+    }
+    
+    synchronized int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Return the ids of up to limit patients whose names match the query, best first. A query with no tokens (say,
+     * blank) matches nothing.
+     */
+    synchronized List<Integer> search(String query, int limit, boolean fuzzy) {
+        String[] queryTokens = tokens(query);
+        List<Integer> results = new ArrayList<>();
+        if (queryTokens.length == 0 || limit <= 0) return results;
+        
+        // walk the tokens matching the longest query token, which should be the fewest, and check the rest of the
+        // query against each name found there
+        String lead = queryTokens[0];
+        for (String token : queryTokens) {
+            if (token.length() > lead.length()) lead = token;
+        }
+        boolean leadFuzzy = fuzzy && !hasPrefix(lead);
+        
+        Set<Integer> seen = new LinkedHashSet<>();
+        for (Map.Entry<String, Postings> tokenPostings : candidates(lead, leadFuzzy).entrySet()) {
+            Postings list = tokenPostings.getValue();
+            for (int i = 0; i < list.size; i++) {
+                Entry entry = list.entries[i];
+                if (!matches(entry, queryTokens, fuzzy) || !seen.add(entry.id)) continue;
+                if (seen.size() == limit) {
+                    results.addAll(seen);
+                    return results;
+                }
+            }
+        }
+        results.addAll(seen);
+        return results;
+    }
+    
+    /** The lowercased, accent-free tokens of the given text */
+    static String[] tokens(String text) {
+        String normalized = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        return Arrays.stream(SEPARATORS.split(normalized)).filter(token -> !token.isEmpty()).toArray(String[]::new);
+    }
+    
+    private boolean hasPrefix(String prefix) {
+        String next = postings.ceilingKey(prefix);
+        return next != null && next.startsWith(prefix);
+    }
+    
+    /** The postings of the tokens starting with prefix (or within a typo of it), in token order */
+    private NavigableMap<String, Postings> candidates(String prefix, boolean fuzzy) {
+        if (!fuzzy) return postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        
+        // typos: only tokens with the same first letter, which keeps this to a small part of the index
+        String first = prefix.substring(0, 1);
+        NavigableMap<String, Postings> found = new TreeMap<>();
+        for (Map.Entry<String, Postings> tokenPostings
+                : postings.subMap(first, true, first + Character.MAX_VALUE, false).entrySet()) {
+            if (startsWithinOneEdit(tokenPostings.getKey(), prefix)) {
+                found.put(tokenPostings.getKey(), tokenPostings.getValue());
+            }
+        }
+        return found;
+    }
+    
+    /** Whether each query token starts a different one of the entry's tokens */
+    private static boolean matches(Entry entry, String[] queryTokens, boolean fuzzy) {
+        if (queryTokens.length > entry.tokens.length) return false;
+        long used = 0; // bit i is set once token i has been matched
+        for (String queryToken : queryTokens) {
+            int match = findToken(entry.tokens, used, queryToken, false);
+            if (match < 0 && fuzzy && queryToken.length() >= FUZZY_MIN_LENGTH) {
+                match = findToken(entry.tokens, used, queryToken, true);
+            }
+            if (match < 0) return false;
+            used |= 1L << match;
+        }
+        return true;
+    }
+    
+    private static int findToken(String[] tokens, long used, String prefix, boolean fuzzy) {
+        for (int i = 0; i < tokens.length && i < Long.SIZE; i++) {
+            if ((used & 1L << i) != 0) continue;
+            if (fuzzy ? startsWithinOneEdit(tokens[i], prefix) : tokens[i].startsWith(prefix)) return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * Whether token starts with something one edit (an insertion, deletion, substitution or swap of neighbours)
+     * away from prefix, keeping the first letter.
+     */
+    static boolean startsWithinOneEdit(String token, String prefix) {
+        if (prefix.length() < FUZZY_MIN_LENGTH || token.isEmpty() || token.charAt(0) != prefix.charAt(0)) {
+            return false;
+        }
+        if (token.startsWith(prefix)) return true;
+        
+        // find the first difference, then see whether one edit there lines the rest up
+        int n = prefix.length();
+        int i = 1;
+        while (i < n && i < token.length() && token.charAt(i) == prefix.charAt(i)) i++;
+        if (i == token.length()) return false; // token is a strict prefix of prefix
+        return regionEquals(token, i + 1, prefix, i + 1, n - i - 1) // substitution
+                || regionEquals(token, i, prefix, i + 1, n - i - 1) // extra letter in the query
+                || regionEquals(token, i + 1, prefix, i, n - i) // missing letter in the query
+                || i + 1 < n && i + 1 < token.length() && token.charAt(i) == prefix.charAt(i + 1)
+                && token.charAt(i + 1) == prefix.charAt(i) && regionEquals(token, i + 2, prefix, i + 2, n - i - 2);
+    }
+    
+    private static boolean regionEquals(String token, int tokenStart, String prefix, int prefixStart, int length) {
+        return length <= 0 || token.regionMatches(tokenStart, prefix, prefixStart, length);
+    }
+    
+    /** A patient in the index */
+    private static class Entry implements Comparable<Entry> {
+        
+        final int id;
+        final String name;
+        final String sortName;
+        final String[] tokens;
+        
+        Entry(int id, String name) {
+            this.id = id;
+            this.name = name;
+            tokens = tokens(name);
+            sortName = String.join(" ", tokens);
+        }
+        
+        @Override
+        public int compareTo(Entry other) {
+            int byName = sortName.compareTo(other.sortName);
+            return byName != 0 ? byName : Integer.compare(id, other.id);
+        }
+        
+    }
+    
+    /** The entries with some token, sorted by name */
+    private static class Postings {
+        
+        Entry[] entries = new Entry[2];
+        int size = 0;
+        
+        void add(Entry entry) {
+            int at = Arrays.binarySearch(entries, 0, size, entry);
+            if (at >= 0) return; // the same token twice in a name
+            at = -at - 1;
+            if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+            System.arraycopy(entries, at, entries, at + 1, size - at);
+            entries[at] = entry;
+            size++;
+        }
+        
+        void remove(Entry entry) {
+            int at = Arrays.binarySearch(entries, 0, size, entry);
+            if (at < 0) return;
+            System.arraycopy(entries, at + 1, entries, at, size - at - 1);
+            entries[--size] = null;
+        }
+        
+    }
+    
+}
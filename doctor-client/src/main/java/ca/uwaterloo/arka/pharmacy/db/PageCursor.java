@@ -0,0 +1,38 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+/**
+ * A place in the list of user records sorted by name, just after a given record. Records with the same name are
+ * sorted by id, as the database does, so a cursor is the name and the id together: paging from it neither skips nor
+ * repeats patients who share a name. Immutable.
+ */
+public final class PageCursor {
+    
+    public final String name;
+    public final int id;
+    
+    public PageCursor(String name, int id) {
+        if (name == null) throw new NullPointerException("cannot have null name");
+        this.name = name;
+        this.id = id;
+    }
+    
+    /** The place just after the given record */
+    public static PageCursor after(UserRecord record) {
+        return new PageCursor(record.getName(), record.id);
+    }
+    
+    /** Whether the given record comes after this place */
+    boolean isBefore(UserRecord record) {
+        int byName = name.compareTo(record.getName());
+        return byName < 0 || byName == 0 && id < record.id;
+    }
+    
+    @Override
+    public String toString() {
+        return "PageCursor{" +
+                "name='" + name + '\'' +
+                ", id=" + id +
+                '}';
+    }
+    
+}
@@ -0,0 +1,233 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends the changes queued in LocalUserStore to the DB, in order, a batch at a time (one multi-path update each), in
+ * the background. If a batch fails, it's tried again after a wait that doubles each time, up to a minute; if Firebase
+ * can't reach the DB, it holds on to the write until it can.
+ * Before sending an update, it checks the DB for changes made elsewhere since the record was loaded here: if another
+ * client has changed the same fields, the change here still wins, but the conflict listeners are told; if another
+ * client has deleted the record, the change here is dropped (rather than bringing back half a record), the record
+ * goes from the list, and the listeners are told.
+ */
+final class SyncQueue {
+    
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60_000;
+    private static final Gson GSON = new Gson();
+    
+    private static SyncQueue instance = null;
+    
+    private final LocalUserStore store;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "user-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Consumer<String>> conflictListeners = new CopyOnWriteArrayList<>();
+    
+    // only used on the scheduler's thread
+    private boolean sending = false;
+    private long backoffMs = 0;
+    
+    static synchronized SyncQueue getInstance() {
+        if (instance == null) instance = new SyncQueue(LocalUserStore.getInstance());
+        return instance;
+    }
+    
+    private SyncQueue(LocalUserStore store) {
+        this.store = store;
+    }
+    
+    /** Start sending whatever's queued, if it isn't being sent already, once Firebase has been initialized */
+    void kick() {
+        DbUserDao.whenInitialized(() -> scheduler.execute(() -> {
+            if (!sending) sendNext();
+        }));
+    }
+    
+    /** Call the listener (on the FX thread) with a description of the conflicts found in each batch sent */
+    void addConflictListener(Consumer<String> listener) {
+        conflictListeners.add(listener);
+    }
+    
+    private void sendNext() {
+        List<LocalUserStore.Change> batch = store.nextBatch(UserDao.BULK_BATCH_SIZE, BatchWriter.MAX_BATCH_BYTES);
+        if (batch.isEmpty()) {
+            sending = false;
+            return;
+        }
+        sending = true;
+        
+        // look at the fields being updated as they are in the DB now
+        List<CompletableFuture<Map<String, Object>>> remotes = new ArrayList<>(batch.size());
+        for (LocalUserStore.Change change : batch) {
+            remotes.add(change.base == null ? CompletableFuture.completedFuture(Map.of()) : read(change));
+        }
+        CompletableFuture.allOf(remotes.toArray(new CompletableFuture[0])).whenCompleteAsync((ignored, error) -> {
+            if (error != null) {
+                retry(error.getMessage());
+                return;
+            }
+            
+            Map<String, Object> update = new HashMap<>();
+            List<String> conflicts = new ArrayList<>();
+            List<Integer> deletedElsewhere = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                LocalUserStore.Change change = batch.get(i);
+                Map<String, Object> remote = remotes.get(i).join();
+                if (remote == null) {
+                    conflicts.add("User " + change.id + " was deleted elsewhere, so the changes made to them here "
+                            + "have been dropped.");
+                    deletedElsewhere.add(change.id);
+                    continue;
+                }
+                if (change.base != null) conflicts.addAll(findConflicts(change, remote));
+                update.putAll(change.paths);
+            }
+            
+            if (update.isEmpty()) {
+                sent(batch, conflicts, deletedElsewhere);
+                return;
+            }
+            FirebaseDatabase.getInstance().getReference().updateChildren(update, (writeError, ref) ->
+                    scheduler.execute(() -> {
+                        if (writeError != null) retry(writeError.getMessage());
+                        else sent(batch, conflicts, deletedElsewhere);
+                    }));
+        }, scheduler);
+    }
+    
+    private void sent(List<LocalUserStore.Change> batch, List<String> conflicts, List<Integer> deletedElsewhere) {
+        store.ack(batch);
+        backoffMs = 0;
+        System.out.println("[SyncQueue] Sent " + batch.size() + " changes, " + store.getQueuedCount() + " to go");
+        report(conflicts, deletedElsewhere);
+        sendNext();
+    }
+    
+    private void retry(String error) {
+        backoffMs = Math.min(Math.max(backoffMs * 2, MIN_BACKOFF_MS), MAX_BACKOFF_MS);
+        System.err.println("[SyncQueue] Couldn't send changes (" + error + "); trying again in " + backoffMs + " ms");
+        scheduler.schedule(this::sendNext, backoffMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Read the fields the change looked at as they are in the DB now, each on its own rather than the whole record
+     * (which has the fingerprint and every prescription in it), and the name too, which every user has, to tell
+     * whether the record's still there. Completes with the values by field, or null if the record's been deleted.
+     */
+    private static CompletableFuture<Map<String, Object>> read(LocalUserStore.Change change) {
+        List<String> fields = new ArrayList<>(change.base.keySet());
+        if (!fields.contains(UserRecord.NAME)) fields.add(UserRecord.NAME);
+        List<CompletableFuture<DataSnapshot>> reads = new ArrayList<>(fields.size());
+        for (String field : fields) {
+            reads.add(read(DbUserDao.USERS + "/" + change.id + "/" + field));
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            if (!reads.get(fields.indexOf(UserRecord.NAME)).join().exists()) return null;
+            Map<String, Object> values = new HashMap<>();
+            for (int i = 0; i < fields.size(); i++) {
+                values.put(fields.get(i), reads.get(i).join().getValue());
+            }
+            return values;
+        });
+    }
+    
+    private static CompletableFuture<DataSnapshot> read(String path) {
+        CompletableFuture<DataSnapshot> result = new CompletableFuture<>();
+        FirebaseDatabase.getInstance().getReference(path)
+                .addListenerForSingleValueEvent(new ValueEventListener() {
+                    @Override
+                    public void onDataChange(DataSnapshot snapshot) {
+                        result.complete(snapshot);
+                    }
+                    
+                    @Override
+                    public void onCancelled(DatabaseError error) {
+                        result.completeExceptionally(error.toException());
+                    }
+                });
+        return result;
+    }
+    
+    /** The fields the change changes that have also been changed to something else in the DB since it was made */
+    private static List<String> findConflicts(LocalUserStore.Change change, Map<String, Object> remote) {
+        List<String> conflicts = new ArrayList<>();
+        for (Map.Entry<String, Object> before : change.base.entrySet()) {
+            Object now = remote.get(before.getKey());
+            Object ours = change.fields.get(before.getKey());
+            if (!sameValue(now, before.getValue()) && !sameValue(now, ours)) {
+                conflicts.add("The " + before.getKey() + " of user " + change.id + " was also changed elsewhere; "
+                        + "the change made here has replaced it.");
+            }
+        }
+        return conflicts;
+    }
+    
+    /** Whether the values would be the same in the DB, which doesn't keep empty lists or maps, or number types */
+    private static boolean sameValue(Object a, Object b) {
+        return normalize(GSON.toJsonTree(a)).equals(normalize(GSON.toJsonTree(b)));
+    }
+    
+    private static JsonElement normalize(JsonElement json) {
+        if (json.isJsonArray() && json.getAsJsonArray().size() == 0) return JsonNull.INSTANCE;
+        if (json.isJsonObject() && json.getAsJsonObject().size() == 0) return JsonNull.INSTANCE;
+        if (json.isJsonArray()) {
+            // the DB stores lists as maps by index, and gives them back as lists
+            JsonArray array = new JsonArray();
+            for (JsonElement element : json.getAsJsonArray()) {
+                array.add(normalize(element));
+            }
+            return array;
+        }
+        if (json.isJsonObject()) {
+            JsonObject object = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet()) {
+                JsonElement value = normalize(entry.getValue());
+                if (!value.isJsonNull()) object.add(entry.getKey(), value);
+            }
+            return object;
+        }
+        return json;
+    }
+    
+    private void report(List<String> conflicts, List<Integer> deletedElsewhere) {
+        if (conflicts.isEmpty()) return;
+        for (String conflict : conflicts) {
+            System.err.println("[SyncQueue] " + conflict);
+        }
+        Platform.runLater(() -> {
+            for (int id : deletedElsewhere) {
+                store.removeRemote(id);
+                UserReplica.getInstance().removedElsewhere(id);
+            }
+            String message = String.join("\n", conflicts);
+            for (Consumer<String> listener : conflictListeners) {
+                listener.accept(message);
+            }
+        });
+    }
+    
+}
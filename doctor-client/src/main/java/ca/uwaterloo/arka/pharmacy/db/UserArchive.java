@@ -0,0 +1,360 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backs up /arka/user to newline-delimited JSON, one {"key": ..., "value": ...} line per user, and loads it back.
+ * Both stream: an export reads the users a page at a time, in key order, and an import writes a batch of lines at a
+ * time, with a few batches in flight, so neither holds more than a few pages of users at once however big the DB is.
+ * An import keeps a checkpoint file of how many lines have been written, so if it's stopped, running it again picks
+ * up from there. (Writing a user replaces it, so writing a few lines again on the way doesn't hurt.)
+ * Both block until they're done, so don't use them on the FX thread. See PatientArchive for the command line.
+ */
+public final class UserArchive {
+    
+    public static final int DEFAULT_PAGE_SIZE = 500;
+    
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final long PROGRESS_INTERVAL_NS = 2_000_000_000L;
+    
+    private UserArchive() {}
+    
+    /** Connect to the DB, without the local copy of it that the doctor client keeps */
+    public static void initialize() throws IOException {
+        new DbUserDao().initialize();
+    }
+    
+    /**
+     * Write every user to the file, gzipped if asked to, reading pageSize users at a time. Return how many there were.
+     */
+    public static long exportTo(Path file, boolean gzip, int pageSize) throws IOException, InterruptedException {
+        FirebaseDatabase.getInstance().goOnline();
+        DatabaseReference users = FirebaseDatabase.getInstance().getReference(DbUserDao.USERS);
+        Progress progress = new Progress("Exported");
+        
+        OutputStream out = Files.newOutputStream(file);
+        if (gzip) out = new GZIPOutputStream(out, 1 << 16);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16)) {
+            String lastKey = null;
+            while (true) {
+                // startAt is inclusive, so ask for one more and skip the last page's last user
+                Query query = users.orderByKey();
+                if (lastKey == null) query = query.limitToFirst(pageSize);
+                else query = query.startAt(lastKey).limitToFirst(pageSize + 1);
+                DataSnapshot page = get(query);
+                
+                int count = 0;
+                for (DataSnapshot child : page.getChildren()) {
+                    if (child.getKey().equals(lastKey)) continue;
+                    JsonObject line = new JsonObject();
+                    line.addProperty("key", child.getKey());
+                    line.add("value", GSON.toJsonTree(child.getValue()));
+                    String json = GSON.toJson(line);
+                    writer.write(json);
+                    writer.write('\n');
+                    lastKey = child.getKey();
+                    count++;
+                    progress.add(1, json.length() + 1);
+                }
+                if (count < pageSize) break;
+            }
+        }
+        progress.finish();
+        return progress.count;
+    }
+    
+    /**
+     * Write every user in the file (gzipped or not) to the DB, along with their entries in the user index, in batches
+     * of up to batchSize users with up to maxInFlight batches in flight at once. Keep the number of lines written so
+     * far in the checkpoint file, and start after that many lines if it's already there; it's deleted once the whole
+     * file is in. If a batch fails, stop and throw an IOException once the batches in flight are done. Return how many
+     * users were written.
+     */
+    public static long importFrom(Path file, Path checkpoint, int batchSize, int maxInFlight)
+            throws IOException, InterruptedException {
+        long skip = 0;
+        if (Files.exists(checkpoint)) {
+            skip = Long.parseLong(Files.readString(checkpoint).strip());
+            System.out.println("[UserArchive] Resuming after line " + skip + " from " + checkpoint);
+        }
+        
+        FirebaseDatabase.getInstance().goOnline();
+        DatabaseReference root = FirebaseDatabase.getInstance().getReference();
+        Progress progress = new Progress("Imported");
+        Checkpoints done = new Checkpoints(checkpoint, skip);
+        Semaphore slots = new Semaphore(maxInFlight);
+        
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(file), StandardCharsets.UTF_8),
+                1 << 16)) {
+            long lineNumber = 0;
+            Map<String, Object> update = new HashMap<>();
+            int users = 0;
+            long bytes = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+                if (lineNumber <= skip || line.isBlank()) continue;
+                
+                JsonObject json;
+                try {
+                    json = JsonParser.parseString(line).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException e) {
+                    throw new IOException("Line " + lineNumber + " of " + file + " isn't JSON: " + e.getMessage());
+                }
+                if (!json.has("key")) throw new IOException("Line " + lineNumber + " of " + file + " has no key");
+                String key = json.get("key").getAsString();
+                Object value = toValue(json.get("value"));
+                update.put(DbUserDao.USERS + "/" + key, value);
+                Map<String, Object> summary = summary(key, value);
+                if (summary != null) {
+                    update.put(DbUserDao.USER_INDEX + "/" + key, summary);
+                    update.put(DbUserDao.USER_FINGERPRINT + "/" + key, fingerprint8(value));
+                }
+                users++;
+                bytes += line.length() + 1;
+                
+                if (users == batchSize || bytes >= BatchWriter.MAX_BATCH_BYTES) {
+                    boolean sent = send(root, update, users, bytes, lineNumber, slots, done, progress);
+                    update = new HashMap<>();
+                    users = 0;
+                    bytes = 0;
+                    if (!sent) break;
+                }
+            }
+            if (users > 0) send(root, update, users, bytes, lineNumber, slots, done, progress);
+            
+            slots.acquire(maxInFlight); // wait for the rest
+        }
+        
+        if (done.error != null) {
+            throw new IOException("Import stopped after line " + done.written + ": " + done.error
+                    + "; run it again to resume");
+        }
+        progress.finish();
+        Files.deleteIfExists(checkpoint);
+        return progress.count;
+    }
+    
+    /** Send a batch once there's room for it, unless one has failed already; return whether it was sent */
+    private static boolean send(DatabaseReference root, Map<String, Object> update, int users, long bytes,
+                                long lastLine, Semaphore slots, Checkpoints done, Progress progress)
+            throws InterruptedException {
+        slots.acquire();
+        long batch = done.start(lastLine);
+        if (batch < 0) {
+            slots.release();
+            return false;
+        }
+        root.updateChildren(update, (error, ref) -> {
+            try {
+                done.finish(batch, error == null ? null : error.getMessage());
+                if (error == null) progress.add(users, bytes);
+            } finally {
+                slots.release();
+            }
+        });
+        return true;
+    }
+    
+    /** The user index entry for the user, like UserRecord.getSummary, or null if the key isn't a numeric id */
+    private static Map<String, Object> summary(String key, Object value) {
+        if (!(value instanceof Map)) return null;
+        Map<?, ?> user = (Map<?, ?>) value;
+        Map<String, Object> summary = new HashMap<>();
+        try {
+            summary.put("id", Integer.parseInt(key));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        summary.put(UserRecord.NAME, user.containsKey(UserRecord.NAME) ? user.get(UserRecord.NAME) : "");
+        summary.put(UserRecord.DOCTORS, user.containsKey(UserRecord.DOCTORS) ? user.get(UserRecord.DOCTORS)
+                : new ArrayList<>());
+        return summary;
+    }
+    
+    /** The user's entry in the fingerprint index, like DbUserDao.fingerprintEntry, or null if they have none */
+    private static String fingerprint8(Object value) {
+        Object fingerprint = ((Map<?, ?>) value).get(UserRecord.FINGERPRINT);
+        short[] decoded = fingerprint instanceof String ? FingerprintCodec.decode((String) fingerprint) : null;
+        return decoded == null ? null : FingerprintCodec.encode8(decoded);
+    }
+    
+    /** The file's contents, unzipped if it's gzipped */
+    private static InputStream open(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+        in.mark(2);
+        boolean gzipped = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        return gzipped ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+    
+    /** The JSON as the plain values Firebase writes: maps, lists, strings, booleans, longs and doubles */
+    static Object toValue(JsonElement json) {
+        if (json == null || json.isJsonNull()) return null;
+        if (json.isJsonObject()) {
+            Map<String, Object> map = new HashMap<>();
+            for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet()) {
+                map.put(entry.getKey(), toValue(entry.getValue()));
+            }
+            return map;
+        }
+        if (json.isJsonArray()) {
+            List<Object> list = new ArrayList<>();
+            for (JsonElement element : json.getAsJsonArray()) {
+                list.add(toValue(element));
+            }
+            return list;
+        }
+        JsonPrimitive primitive = json.getAsJsonPrimitive();
+        if (primitive.isBoolean()) return primitive.getAsBoolean();
+        if (primitive.isString()) return primitive.getAsString();
+        BigDecimal number = primitive.getAsBigDecimal();
+        try {
+            return number.longValueExact();
+        } catch (ArithmeticException e) {
+            return number.doubleValue();
+        }
+    }
+    
+    private static DataSnapshot get(Query query) throws IOException, InterruptedException {
+        CompletableFuture<DataSnapshot> result = new CompletableFuture<>();
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                result.complete(snapshot);
+            }
+            
+            @Override
+            public void onCancelled(DatabaseError error) {
+                result.completeExceptionally(error.toException());
+            }
+        });
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+    
+    /**
+     * Keeps the checkpoint file at the last line of the last batch that's been written with every batch before it,
+     * since batches can finish out of order.
+     */
+    private static class Checkpoints {
+        
+        private final Path file;
+        private final TreeMap<Long, Long> lastLines = new TreeMap<>(); // of batches in flight, by batch number
+        private final Set<Long> finished = new HashSet<>();
+        private long nextBatch = 0;
+        long written;
+        String error = null;
+        
+        Checkpoints(Path file, long written) {
+            this.file = file;
+            this.written = written;
+        }
+        
+        /** Number a batch ending at the given line, or return -1 if a batch has failed, so no more should be sent */
+        synchronized long start(long lastLine) {
+            if (error != null) return -1;
+            lastLines.put(nextBatch, lastLine);
+            return nextBatch++;
+        }
+        
+        synchronized void finish(long batch, String error) {
+            if (error != null) {
+                if (this.error == null) this.error = error;
+                return;
+            }
+            
+            finished.add(batch);
+            long before = written;
+            while (!lastLines.isEmpty() && finished.remove(lastLines.firstKey())) {
+                written = lastLines.pollFirstEntry().getValue();
+            }
+            if (written == before) return;
+            try {
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.writeString(temp, Long.toString(written));
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("[UserArchive] Couldn't save the checkpoint: " + e.getMessage());
+            }
+        }
+        
+    }
+    
+    /** Counts users and bytes, printing how many there have been and how fast every couple of seconds */
+    private static class Progress {
+        
+        private final String verb;
+        private final long start = System.nanoTime();
+        private long lastPrinted = start;
+        long count = 0;
+        private long bytes = 0;
+        
+        Progress(String verb) {
+            this.verb = verb;
+        }
+        
+        synchronized void add(long users, long userBytes) {
+            count += users;
+            bytes += userBytes;
+            long now = System.nanoTime();
+            if (now - lastPrinted >= PROGRESS_INTERVAL_NS) {
+                lastPrinted = now;
+                print(now);
+            }
+        }
+        
+        synchronized void finish() {
+            print(System.nanoTime());
+        }
+        
+        private void print(long now) {
+            double seconds = Math.max(now - start, 1) / 1e9;
+            System.out.printf("[UserArchive] %s %d users (%.1f MB) in %.1f s: %.0f users/s%n", verb, count,
+                    bytes / 1e6, seconds, count / seconds);
+        }
+        
+    }
+    
+}
@@ -1,6 +1,12 @@
 package ca.uwaterloo.arka.pharmacy.db;
 
+import ca.uwaterloo.arka.pharmacy.match.FingerprintMatcher;
+
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
@@ -10,11 +16,42 @@ import java.util.function.Consumer;
  */
 public interface UserDao {
     
+    /** How many records the bulk methods put in each write, and how many of those writes they have going at once */
+    int BULK_BATCH_SIZE = 500;
+    int BULK_MAX_IN_FLIGHT = 4;
+    
     /**
-     * Return a concrete UserDao.
+     * Return a concrete UserDao. It works offline: see LocalUserDao.
      */
     static UserDao newDao() {
-        return new DbUserDao();
+        return new LocalUserDao();
+    }
+    
+    /**
+     * Start reading the records saved on this computer in the background, so that the first list of patients can be
+     * shown from them without waiting for initialize, and open the patients' fingerprints (see fingerprintMatcher).
+     * Can be called from any thread, before or during initialize. Returns a future that's done once the records have
+     * been read.
+     */
+    static CompletableFuture<?> preload() {
+        CompletableFuture.runAsync(FingerprintReplica::getInstance);
+        return UserReplica.preload();
+    }
+    
+    /**
+     * The face fingerprints of every patient, for spotting one being registered twice. Kept on disk, and in step with
+     * the records saved through any UserDao.
+     */
+    static FingerprintMatcher fingerprintMatcher() {
+        return FingerprintReplica.getInstance().getMatcher();
+    }
+    
+    /**
+     * Finish saving changes to disk. Called when the application exits.
+     */
+    static void shutdown() {
+        LocalUserStore.shutdownInstance();
+        FingerprintReplica.shutdownInstance();
     }
     
     /**
@@ -29,16 +66,43 @@ public interface UserDao {
     void create(UserRecord user, Runnable callback, Consumer<String> errorCb);
     
     /**
-     * Retrieve a list of user records on this page, sorted alphabetically by name. Call the callback with each
-     * record retrieved. If there's an error, call the error callback.
+     * Retrieve every user record, sorted alphabetically by name. Call the callback with the records retrieved, in one
+     * or more lists, in order. If there's an error, call the error callback.
+     */
+    void getAllSortedAlphabetically(Consumer<List<UserRecord>> callback, Consumer<String> errorCb);
+    
+    /**
+     * Retrieve a page of up to limit user records sorted alphabetically by name, starting just after the given cursor
+     * (or at the start, if it's null), and call the callback with them. A page shorter than limit is the last one.
+     * Use PageCursor.after on the last record of a page to get the next one. If there's an error, call the error
+     * callback.
      */
-    void getAllSortedAlphabetically(Consumer<UserRecord> callback, Consumer<String> errorCb);
+    void getPage(PageCursor after, int limit, Consumer<List<UserRecord>> callback, Consumer<String> errorCb);
     
     /**
-     * Retrieve a list of user records with the given name in arbitrary order, calling the callback for each one.
-     * If an error is encountered, call the error callback with details.
+     * Retrieve a list of user records whose names match the given search, best matches first, calling the callback
+     * with them in one or more lists, in order. Matching ignores case and accents, looks at the start of every word
+     * of the name, and tolerates a typo. If an error is encountered, call the error callback with details.
      */
-    void searchByName(String name, Consumer<UserRecord> callback, Consumer<String> errorCb);
+    void searchByName(String name, Consumer<List<UserRecord>> callback, Consumer<String> errorCb);
+    
+    /**
+     * Call the listener (on the FX thread) whenever another client adds, removes or renames a user record, so that
+     * lists of them can be refreshed.
+     */
+    void addChangeListener(Runnable listener);
+    
+    /**
+     * Call the listener (on the FX thread) with a description whenever changes made here turn out to conflict with
+     * changes made elsewhere in the meantime, for DAOs that save changes before they reach the DB.
+     */
+    default void addConflictListener(Consumer<String> listener) {}
+    
+    /**
+     * Lists and searches only load the summary of each record: its id, name and doctors. Load the rest of the given
+     * record (see UserRecord.isDetailsLoaded), then call the callback, or the error callback if we can't.
+     */
+    void loadDetails(UserRecord record, Runnable callback, Consumer<String> errorCb);
     
     /**
      * Update the user record on the DB with the supplied user record, or call the error callback with a message
@@ -52,4 +116,38 @@ public interface UserDao {
      */
     void delete(UserRecord record, Runnable callback, Consumer<String> errorCb);
     
+    /**
+     * Create all of the supplied user records in the DB, a batch at a time: each batch is one atomic write of up to
+     * batchSize records (fewer, if they're big), with up to maxInFlight batches being written at once. Call resultCb
+     * (on the FX thread) with each record and null if it was created, or an error message if it wasn't, then doneCb
+     * once every record has its result.
+     */
+    void createAll(Collection<UserRecord> users, int batchSize, int maxInFlight,
+                   BiConsumer<UserRecord, String> resultCb, Runnable doneCb);
+    
+    default void createAll(Collection<UserRecord> users, BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        createAll(users, BULK_BATCH_SIZE, BULK_MAX_IN_FLIGHT, resultCb, doneCb);
+    }
+    
+    /**
+     * Save the changes to all of the supplied user records, in batches like createAll. Records whose details haven't
+     * been loaded fail without being written.
+     */
+    void updateAll(Collection<UserRecord> users, int batchSize, int maxInFlight,
+                   BiConsumer<UserRecord, String> resultCb, Runnable doneCb);
+    
+    default void updateAll(Collection<UserRecord> users, BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        updateAll(users, BULK_BATCH_SIZE, BULK_MAX_IN_FLIGHT, resultCb, doneCb);
+    }
+    
+    /**
+     * Delete all of the supplied user records from the DB, in batches like createAll.
+     */
+    void deleteAll(Collection<UserRecord> users, int batchSize, int maxInFlight,
+                   BiConsumer<UserRecord, String> resultCb, Runnable doneCb);
+    
+    default void deleteAll(Collection<UserRecord> users, BiConsumer<UserRecord, String> resultCb, Runnable doneCb) {
+        deleteAll(users, BULK_BATCH_SIZE, BULK_MAX_IN_FLIGHT, resultCb, doneCb);
+    }
+    
 }
@@ -1,19 +1,28 @@
 package ca.uwaterloo.arka.pharmacy.db;
 
 import com.google.firebase.database.Exclude;
+import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ListProperty;
 import javafx.beans.property.MapProperty;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleListProperty;
 import javafx.beans.property.SimpleMapProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -26,6 +35,14 @@ import java.util.stream.Collectors;
  */
 public class UserRecord {
     
+    // paths of the fields that can be changed, under the user's node in the DB
+    static final String NAME = "name";
+    static final String DOCTORS = "doctors";
+    static final String PRESCRIPTIONS = "prescriptions";
+    static final String FINGERPRINT = "fingerprint";
+    static final String FINGERPRINT_8 = "fingerprint8";
+    static final String RECORD = "record"; // written by the kiosks, not here
+    
     public int id;
     private StringProperty nameProperty = new SimpleStringProperty();
     private ListProperty<String> doctorsProperty = new SimpleListProperty<>();
@@ -33,6 +50,14 @@ public class UserRecord {
     private StringProperty fingerprintProperty = new SimpleStringProperty();
     private MapProperty<String, TransactionRecord> transactionRecordProperty = new SimpleMapProperty<>();
     
+    // whether the prescriptions, fingerprint and transaction record are here, or only the summary fields (id, name
+    // and doctors) from the user index
+    private BooleanProperty detailsLoadedProperty = new SimpleBooleanProperty(true);
+    
+    // the fields changed since the record was created, loaded or last saved, by their paths in the DB
+    private final Set<String> changedFields = new LinkedHashSet<>();
+    private boolean trackingChanges = false;
+    
     @SuppressWarnings("unused")
     public UserRecord() {
         // No-arg constructor required for Firebase
@@ -42,6 +67,7 @@ public class UserRecord {
         prescriptionsProperty.setValue(FXCollections.observableList(new ArrayList<>()));
         doctorsProperty.setValue(FXCollections.observableList(new ArrayList<>()));
         transactionRecordProperty.setValue(FXCollections.observableHashMap());
+        trackChanges();
     }
     
     public UserRecord(int id, String name, List<String> doctors, List<PrescriptionRecord> prescriptions,
@@ -55,13 +81,35 @@ public class UserRecord {
         doctorsProperty.set(FXCollections.observableList(doctors));
         prescriptionsProperty.set(FXCollections.observableList(prescriptions));
         fingerprintProperty.set(fingerprint);
+        trackChanges();
+    }
+    
+    private void trackChanges() {
+        // change listeners rather than invalidation listeners, which miss a set while the property is still invalid
+        // (as it is until something reads it), and don't tell a new value from an equal one
+        nameProperty.addListener((observable, oldValue, newValue) -> {
+            if (!Objects.equals(oldValue, newValue)) changed(NAME);
+        });
+        fingerprintProperty.addListener((observable, oldValue, newValue) -> {
+            if (Objects.equals(oldValue, newValue)) return;
+            changed(FINGERPRINT);
+            changed(FINGERPRINT_8);
+        });
+        // fire when the lists' contents change, as well as when they're replaced
+        doctorsProperty.addListener((ListChangeListener<String>) change -> changed(DOCTORS));
+        prescriptionsProperty.addListener((ListChangeListener<PrescriptionRecord>) change -> changed(PRESCRIPTIONS));
+        trackingChanges = true;
+    }
+    
+    private void changed(String field) {
+        if (trackingChanges) changedFields.add(field);
     }
     
     @SuppressWarnings("unused")
     public int getId() {
         return id;
     }
-
+    
     public String getName() {
         return nameProperty.get();
     }
@@ -121,22 +169,212 @@ public class UserRecord {
         if (fingerprint == null) throw new NullPointerException("cannot have null fingerprint");
         fingerprintProperty.set(fingerprint);
     }
-
+    
     public StringProperty fingerprintProperty() {
         return fingerprintProperty;
     }
     
+    /**
+     * The fingerprint in FingerprintCodec's smaller 8-bit form, or "" if there's no fingerprint. It's worked out from
+     * the 16-bit fingerprint, and stored beside it so that readers can move over to it as records are saved.
+     */
+    public String getFingerprint8() {
+        short[] fingerprint = FingerprintCodec.decode(getFingerprint());
+        return fingerprint == null ? "" : FingerprintCodec.encode8(fingerprint);
+    }
+    
+    /** To satisfy Firebase - the 8-bit fingerprint always comes from the 16-bit one */
+    @SuppressWarnings("unused")
+    public void setFingerprint8(String fingerprint8) {}
+    
     // for firebase serialization - there's a record field in the DB
     @SuppressWarnings("WeakerAccess")
     public Map<String, TransactionRecord> getRecord() {
         return transactionRecordProperty.get();
     }
-
+    
     @SuppressWarnings("unused")
     public void setRecord(Map<String, TransactionRecord> record) {
         transactionRecordProperty.set(FXCollections.observableMap(record));
     }
     
+    /**
+     * Whether this record has all of its fields, or only the summary ones (id, name and doctors) that lists of
+     * records are loaded with. UserDao.loadDetails fills in the rest.
+     */
+    @Exclude
+    public boolean isDetailsLoaded() {
+        return detailsLoadedProperty.get();
+    }
+    
+    void setDetailsLoaded(boolean detailsLoaded) {
+        detailsLoadedProperty.set(detailsLoaded);
+    }
+    
+    public ReadOnlyBooleanProperty detailsLoadedProperty() {
+        return detailsLoadedProperty;
+    }
+    
+    /** The fields kept in the user index, for listing and searching records without loading all of them */
+    @Exclude
+    Map<String, Object> getSummary() {
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("id", id);
+        summary.put("name", getName());
+        summary.put("doctors", new ArrayList<>(getDoctors()));
+        return summary;
+    }
+    
+    /**
+     * All of the record's fields by their paths under the user's node in the DB, as plain values like takeChanges
+     * returns, for writing the whole record from another thread.
+     */
+    @Exclude
+    Map<String, Object> getFields() {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("id", id);
+        for (String field : List.of(NAME, DOCTORS, PRESCRIPTIONS, FINGERPRINT, FINGERPRINT_8)) {
+            fields.put(field, currentValue(field));
+        }
+        if (getRecord() != null && !getRecord().isEmpty()) {
+            Map<String, Object> record = new HashMap<>();
+            for (Map.Entry<String, TransactionRecord> transaction : getRecord().entrySet()) {
+                Map<String, Object> transactionFields = new HashMap<>();
+                transactionFields.put("dins", transaction.getValue().getDins() == null ? List.of()
+                        : List.copyOf(transaction.getValue().getDins()));
+                transactionFields.put("timestamp", transaction.getValue().getTimestamp());
+                transactionFields.put("type", transaction.getValue().getType());
+                record.put(transaction.getKey(), Collections.unmodifiableMap(transactionFields));
+            }
+            fields.put(RECORD, Collections.unmodifiableMap(record));
+        }
+        return Collections.unmodifiableMap(fields);
+    }
+    
+    /**
+     * Make a record from plain values like getFields returns (as numbers of any type), or from just the summary
+     * fields, for a record whose details haven't been loaded.
+     */
+    static UserRecord fromFields(Map<String, ?> fields) {
+        UserRecord user = new UserRecord();
+        user.id = ((Number) fields.get("id")).intValue();
+        if (fields.get(NAME) != null) user.setName((String) fields.get(NAME));
+        if (fields.get(DOCTORS) != null) {
+            for (Object doctor : (List<?>) fields.get(DOCTORS)) {
+                user.getDoctors().add((String) doctor);
+            }
+        }
+        
+        if (!fields.containsKey(FINGERPRINT)) {
+            user.setDetailsLoaded(false);
+        } else {
+            user.setFingerprint(fields.get(FINGERPRINT) == null ? "" : (String) fields.get(FINGERPRINT));
+            if (fields.get(PRESCRIPTIONS) != null) {
+                for (Object value : ((Map<?, ?>) fields.get(PRESCRIPTIONS)).values()) {
+                    Map<?, ?> prescriptionFields = (Map<?, ?>) value;
+                    PrescriptionRecord prescription = new PrescriptionRecord();
+                    prescription.setDin(((Number) prescriptionFields.get("din")).intValue());
+                    prescription.setType((String) prescriptionFields.get("type"));
+                    prescription.setTimestamp(((Number) prescriptionFields.get("timestamp")).longValue());
+                    prescription.setExpires(((Number) prescriptionFields.get("expires")).longValue());
+                    user.getPrescriptionList().add(prescription);
+                }
+            }
+            if (fields.get(RECORD) != null) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) fields.get(RECORD)).entrySet()) {
+                    Map<?, ?> transactionFields = (Map<?, ?>) entry.getValue();
+                    TransactionRecord transaction = new TransactionRecord();
+                    List<Integer> dins = new ArrayList<>();
+                    if (transactionFields.get("dins") != null) {
+                        for (Object din : (List<?>) transactionFields.get("dins")) {
+                            dins.add(((Number) din).intValue());
+                        }
+                    }
+                    transaction.setDins(dins);
+                    if (transactionFields.get("timestamp") != null) {
+                        transaction.setTimestamp(((Number) transactionFields.get("timestamp")).longValue());
+                    }
+                    transaction.setType((String) transactionFields.get("type"));
+                    user.getRecord().put((String) entry.getKey(), transaction);
+                }
+            }
+        }
+        user.clearChanges();
+        return user;
+    }
+    
+    /**
+     * Make this record's fields the same as the other's, keeping this object (and anything bound to its properties).
+     * If the other only has the summary fields, only those are copied.
+     */
+    void copyFrom(UserRecord other) {
+        // what's copied came from the DB, so it isn't a change to save
+        boolean wasTracking = trackingChanges;
+        trackingChanges = false;
+        try {
+            setName(other.getName());
+            setDoctors(new ArrayList<>(other.getDoctors()));
+            if (!other.isDetailsLoaded()) return;
+            prescriptionsProperty.set(FXCollections.observableList(new ArrayList<>(other.getPrescriptionList())));
+            setFingerprint(other.getFingerprint());
+            setRecord(other.getRecord() == null ? new HashMap<>() : new HashMap<>(other.getRecord()));
+            setDetailsLoaded(true);
+        } finally {
+            trackingChanges = wasTracking;
+        }
+    }
+    
+    /** Forget about any changes so far: the record is as it is in the DB, e.g. because it was just read from it */
+    void clearChanges() {
+        changedFields.clear();
+    }
+    
+    /**
+     * Take the fields changed since the last time this was called (or since the record was created or loaded) and
+     * return their new values by their paths under the user's node in the DB, as plain values that won't change
+     * afterwards. Call this on the FX thread; the result can be written from any thread.
+     */
+    Map<String, Object> takeChanges() {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        for (String field : changedFields) {
+            changes.put(field, currentValue(field));
+        }
+        changedFields.clear();
+        return Collections.unmodifiableMap(changes);
+    }
+    
+    /** Put back changes that were taken but couldn't be saved, so the next save tries them again. */
+    void restoreChanges(Collection<String> fields) {
+        changedFields.addAll(fields);
+    }
+    
+    private Object currentValue(String field) {
+        switch (field) {
+            case NAME:
+                return getName();
+            case DOCTORS:
+                return Collections.unmodifiableList(new ArrayList<>(getDoctors()));
+            case PRESCRIPTIONS:
+                // PrescriptionRecords can be changed, so copy their fields out
+                Map<String, Object> prescriptions = new HashMap<>();
+                for (PrescriptionRecord prescription : getPrescriptionList()) {
+                    Map<String, Object> fields = new HashMap<>();
+                    fields.put("din", prescription.getDin());
+                    fields.put("type", prescription.getType());
+                    fields.put("timestamp", prescription.getTimestamp());
+                    fields.put("expires", prescription.getExpires());
+                    prescriptions.put("DIN_" + prescription.getDin(), Collections.unmodifiableMap(fields));
+                }
+                return Collections.unmodifiableMap(prescriptions);
+            case FINGERPRINT:
+                return getFingerprint();
+            case FINGERPRINT_8:
+                return getFingerprint8();
+            default:
+                throw new IllegalArgumentException("no field " + field);
+        }
+    }
+    
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
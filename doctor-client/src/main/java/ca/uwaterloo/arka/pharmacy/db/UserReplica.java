@@ -0,0 +1,398 @@
+package ca.uwaterloo.arka.pharmacy.db;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A copy of the summary of every user record (its entry in /arka/userIndex), downloaded once and then kept up to
+ * date by child events, so listing and searching patients doesn't touch the network. The rest of a record is only
+ * loaded when it's needed, with UserDao.loadDetails.
+ * It starts from the records saved on this computer by LocalUserStore, and if they've all been downloaded before,
+ * it's in sync right away; the download carries on in the background, and saves what's changed. Records with changes
+ * made here that haven't reached the DB yet are left alone, since the DB would undo them.
+ * The same UserRecord object stands for a patient for as long as the replica has it: changes from the database are
+ * copied into it, so anything bound to its properties stays current.
+ * Only use this on the FX thread; database events are applied there too.
+ */
+final class UserReplica {
+    
+    private static UserReplica instance = null;
+    private static CompletableFuture<List<UserRecord>> saved = null; // see preload
+    
+    private final Map<Integer, UserRecord> records = new HashMap<>();
+    private final NameIndex names = new NameIndex();
+    private final TreeMap<PageCursor, UserRecord> sorted = new TreeMap<>(
+            Comparator.comparing((PageCursor place) -> place.name).thenComparingInt(place -> place.id));
+    private final List<Runnable> changeListeners = new ArrayList<>();
+    
+    // things waiting for the first download to finish, or null once it has
+    private List<Runnable> pending = new ArrayList<>();
+    private List<Consumer<String>> pendingErrors = new ArrayList<>();
+    
+    // database events waiting to be applied on the FX thread, in order; they're applied in batches, since a first
+    // download brings one per record
+    private final Queue<Runnable> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainPosted = new AtomicBoolean(false);
+    private boolean changed = false; // whether to call the change listeners once this batch is applied
+    
+    private DatabaseReference ref = null;
+    private ChildEventListener childListener = null;
+    private boolean seeded = false; // whether the records saved on this computer have been read
+    private boolean started = false; // whether it's listening, or will be once Firebase has been initialized
+    private Set<Integer> seen = null; // the ids downloaded so far, during a download
+    
+    private UserReplica() {}
+    
+    static UserReplica getInstance() {
+        if (instance == null) instance = new UserReplica();
+        return instance;
+    }
+    
+    /**
+     * Start reading the records saved on this computer in the background, if that hasn't started already, so that
+     * they're ready by the time the replica is first used. Can be called from any thread.
+     */
+    static synchronized CompletableFuture<List<UserRecord>> preload() {
+        if (saved == null) saved = CompletableFuture.supplyAsync(UserReplica::readSaved);
+        return saved;
+    }
+    
+    /**
+     * Run the action once the replica is in sync with the database: right away if it already is. If the download
+     * fails, call the error callback instead.
+     */
+    void whenSynced(Runnable action, Consumer<String> errorCb) {
+        ensureStarted();
+        if (pending == null) {
+            action.run();
+            return;
+        }
+        
+        pending.add(action);
+        pendingErrors.add(errorCb);
+    }
+    
+    /**
+     * Seed the replica from the records saved on this computer, and start listening to the database (once Firebase
+     * has been initialized), if it hasn't been started yet.
+     */
+    void ensureStarted() {
+        if (!started) start();
+    }
+    
+    /** Whether the first download has finished, so that the replica has every record */
+    boolean isSynced() {
+        return pending == null;
+    }
+    
+    /** Every record, sorted by name, then id. Only valid once synced. */
+    Collection<UserRecord> getAll() {
+        return Collections.unmodifiableCollection(sorted.values());
+    }
+    
+    /** Up to limit records sorted by name, then id, starting just after the given place. Only valid once synced. */
+    List<UserRecord> getPage(PageCursor after, int limit) {
+        Collection<UserRecord> from = after == null ? sorted.values() : sorted.tailMap(after, false).values();
+        List<UserRecord> page = new ArrayList<>(Math.min(limit, from.size()));
+        for (UserRecord record : from) {
+            if (page.size() == limit) break;
+            page.add(record);
+        }
+        return page;
+    }
+    
+    /** The record with the given id, or null */
+    UserRecord get(int id) {
+        return records.get(id);
+    }
+    
+    /** Up to limit records whose names match the query (see NameIndex), best first. Only valid once synced. */
+    List<UserRecord> search(String query, int limit) {
+        List<UserRecord> found = new ArrayList<>();
+        for (int id : names.search(query, limit, true)) {
+            found.add(records.get(id));
+        }
+        return found;
+    }
+    
+    /**
+     * Add or update a record we've just written ourselves, so that it shows up (and can be found by its new name)
+     * without waiting for the database to tell us about it, and put its fingerprint in FingerprintReplica. Doesn't call
+     * the change listeners, since whoever wrote it knows already.
+     */
+    void putLocal(UserRecord record) {
+        FingerprintReplica.getInstance().putLocal(record);
+        UserRecord existing = records.get(record.id);
+        if (existing == null) {
+            records.put(record.id, record);
+        } else if (existing != record) {
+            existing.copyFrom(record);
+        }
+        index(record.id, record.getName());
+    }
+    
+    /** Remove a record we've just deleted ourselves, and its fingerprint. Doesn't call the change listeners either. */
+    void removeLocal(int id) {
+        FingerprintReplica.getInstance().removeLocal(id);
+        records.remove(id);
+        unindex(id);
+    }
+    
+    /**
+     * Call the listener whenever another client adds, removes or renames a record: once for each batch of changes,
+     * however many there are in it.
+     */
+    void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+    
+    /**
+     * The summaries of the records saved on this computer, which are all of them (as they were) if they've all been
+     * downloaded before. Only their summaries are kept here, like the downloaded ones.
+     */
+    private static List<UserRecord> readSaved() {
+        long start = System.nanoTime();
+        Collection<Map<String, Object>> all = LocalUserStore.getInstance().getAll();
+        List<UserRecord> summaries = new ArrayList<>(all.size());
+        for (Map<String, Object> fields : all) {
+            Map<String, Object> summary = new HashMap<>();
+            for (String field : List.of("id", UserRecord.NAME, UserRecord.DOCTORS)) {
+                summary.put(field, fields.get(field));
+            }
+            summaries.add(UserRecord.fromFields(summary));
+        }
+        System.out.printf("[UserReplica] Read %d saved user records in %d ms%n", summaries.size(),
+                (System.nanoTime() - start) / 1_000_000);
+        return summaries;
+    }
+    
+    /** Start with the records saved on this computer, read by preload (which this waits for, if it has to) */
+    private void seed() {
+        seeded = true;
+        List<UserRecord> summaries;
+        try {
+            summaries = preload().join();
+        } catch (CompletionException e) {
+            System.err.println("[UserReplica] Couldn't read the saved user records; downloading them all");
+            e.printStackTrace();
+            return;
+        }
+        for (UserRecord record : summaries) {
+            if (records.containsKey(record.id)) continue; // written here already, which is newer
+            records.put(record.id, record);
+            index(record.id, record.getName());
+        }
+        if (LocalUserStore.getInstance().isComplete()) synced();
+    }
+    
+    private void start() {
+        started = true;
+        seen = new HashSet<>();
+        if (!seeded) seed();
+        DbUserDao.whenInitialized(() -> Platform.runLater(this::listen));
+    }
+    
+    private void listen() {
+        if (ref != null || !started) return;
+        System.out.println("[UserReplica] Downloading user records");
+        long start = System.nanoTime();
+        FirebaseDatabase.getInstance().goOnline();
+        ref = FirebaseDatabase.getInstance().getReference(DbUserDao.USER_INDEX);
+        childListener = new ChildEventListener() {
+            @Override
+            public void onChildAdded(DataSnapshot snapshot, String previousChildName) {
+                UserRecord record = read(snapshot);
+                if (record != null) post(() -> added(record));
+            }
+            
+            @Override
+            public void onChildChanged(DataSnapshot snapshot, String previousChildName) {
+                UserRecord record = read(snapshot);
+                if (record != null) post(() -> added(record));
+            }
+            
+            @Override
+            public void onChildRemoved(DataSnapshot snapshot) {
+                UserRecord record = read(snapshot);
+                if (record != null) post(() -> removed(record.id));
+            }
+            
+            @Override
+            public void onChildMoved(DataSnapshot snapshot, String previousChildName) {}
+            
+            @Override
+            public void onCancelled(DatabaseError error) {
+                post(() -> failed(error.getMessage()));
+            }
+        };
+        ref.addChildEventListener(childListener);
+        
+        // Firebase sends a location's value only after all of its initial child events, so this marks the end of
+        // the first download (and shares the same data, rather than downloading it again)
+        ref.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                post(() -> {
+                    System.out.printf("[UserReplica] Synced %d user records in %d ms%n", records.size(),
+                            (System.nanoTime() - start) / 1_000_000);
+                    removeUnseen();
+                    LocalUserStore.getInstance().setComplete();
+                    synced();
+                });
+            }
+            
+            @Override
+            public void onCancelled(DatabaseError error) {
+                post(() -> failed(error.getMessage()));
+            }
+        });
+    }
+    
+    /** Apply the event on the FX thread, with whatever others have come in by then */
+    private void post(Runnable event) {
+        incoming.add(event);
+        if (drainPosted.compareAndSet(false, true)) Platform.runLater(this::drain);
+    }
+    
+    private void drain() {
+        drainPosted.set(false); // anything added from here on posts another drain, if this one misses it
+        int count = 0;
+        for (Runnable event = incoming.poll(); event != null; event = incoming.poll()) {
+            event.run();
+            count++;
+        }
+        if (count > 1000) System.out.println("[UserReplica] Applied " + count + " changes");
+        
+        if (changed) {
+            changed = false;
+            notifyListeners();
+        }
+    }
+    
+    private static UserRecord read(DataSnapshot snapshot) {
+        try {
+            return DbUserDao.readSummary(snapshot);
+        } catch (Exception e) {
+            System.err.println("[UserReplica] Skipping unreadable user record " + snapshot.getKey());
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    /** Remove a record that another client deleted while it had changes queued here, which have been dropped */
+    void removedElsewhere(int id) {
+        post(() -> removed(id));
+    }
+    
+    private void added(UserRecord record) {
+        if (seen != null) seen.add(record.id);
+        LocalUserStore store = LocalUserStore.getInstance();
+        if (store.isQueued(record.id)) return;
+        store.putRemote(record.id, record.getSummary());
+        
+        // compare with the indexed name, since a record being edited here may have been renamed already
+        boolean renamed = !record.getName().equals(names.getName(record.id));
+        
+        UserRecord existing = records.get(record.id);
+        if (existing == null) {
+            records.put(record.id, record);
+            index(record.id, record.getName());
+            if (pending == null) changed = true;
+            return;
+        }
+        
+        existing.copyFrom(record);
+        index(record.id, record.getName());
+        if (renamed && pending == null) changed = true;
+    }
+    
+    private void removed(int id) {
+        LocalUserStore store = LocalUserStore.getInstance();
+        if (store.isQueued(id)) return;
+        store.removeRemote(id);
+        unindex(id);
+        if (records.remove(id) != null && pending == null) changed = true;
+    }
+    
+    /** File the record with the given id under its (maybe new) name */
+    private void index(int id, String name) {
+        String oldName = names.getName(id);
+        if (name.equals(oldName)) return;
+        if (oldName != null) sorted.remove(new PageCursor(oldName, id));
+        names.put(id, name);
+        sorted.put(new PageCursor(name, id), records.get(id));
+    }
+    
+    private void unindex(int id) {
+        String oldName = names.getName(id);
+        if (oldName == null) return;
+        names.remove(id);
+        sorted.remove(new PageCursor(oldName, id));
+    }
+    
+    /** Remove the saved records that weren't downloaded, since they were deleted while we weren't listening */
+    private void removeUnseen() {
+        for (int id : new ArrayList<>(records.keySet())) {
+            if (!seen.contains(id)) removed(id);
+        }
+        seen = null;
+    }
+    
+    private void synced() {
+        if (pending == null) return;
+        List<Runnable> actions = pending;
+        pending = null;
+        pendingErrors = null;
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+    
+    private void failed(String message) {
+        if (ref == null) return; // both listeners get cancelled
+        System.err.println("[UserReplica] Lost the user records: " + message);
+        
+        // start listening again next time someone asks, keeping what we have in the meantime
+        ref.removeEventListener(childListener);
+        started = false;
+        ref = null;
+        childListener = null;
+        seen = null;
+        if (pending == null) return;
+        List<Consumer<String>> errorCbs = pendingErrors;
+        pending = new ArrayList<>();
+        pendingErrors = new ArrayList<>();
+        for (Consumer<String> errorCb : errorCbs) {
+            errorCb.accept(message);
+        }
+    }
+    
+    private void notifyListeners() {
+        for (Runnable listener : changeListeners) {
+            listener.run();
+        }
+    }
+    
+}
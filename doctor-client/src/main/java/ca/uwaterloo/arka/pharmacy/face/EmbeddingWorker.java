@@ -0,0 +1,250 @@
+package ca.uwaterloo.arka.pharmacy.face;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A long-lived fingerprint.py process that turns images into 128-dimensional face fingerprints. Starting python and
+ * loading the face_recognition models takes seconds, so instead of paying that for every frame we start the script
+ * once in worker mode (lazily, on the first request) and talk to it over its stdin/stdout.
+ * The protocol is framed and binary: every message is a header (u8 type or status, u32 payload length) followed by
+ * the payload, all big-endian, and the worker answers each request with exactly one response.
+ * If the worker crashes it is restarted on the next request; if a request times out the worker is killed, since we
+ * can't tell where it is in the stream anymore.
+ */
+public class EmbeddingWorker {
+    
+    private static final String[] COMMAND = { "python3", "./fingerprint.py", "--worker" };
+    
+    // the first request after a (re)start includes loading python and the models
+    private static final long STARTUP_TIMEOUT_MS = 60_000;
+    private static final long REQUEST_TIMEOUT_MS = 10_000;
+    private static final long PING_TIMEOUT_MS = 2_000;
+    
+    private static final byte REQUEST_PING = 0;
+    private static final byte REQUEST_EMBED_SLOT = 2;
+    
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_NO_FACE = 1;
+    private static final byte STATUS_ERROR = 2;
+    
+    // the application-wide workers, started lazily
+    private static final List<EmbeddingWorker> instances = new ArrayList<>();
+    
+    // responses are read on here so that we can time them out
+    private final ExecutorService reader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "embedding-worker-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private Process process = null;
+    private DataOutputStream toWorker = null;
+    private DataInputStream fromWorker = null;
+    private boolean warm = false; // whether the current process has answered anything yet
+    
+    /**
+     * Return the application-wide worker. The python process isn't started until it's first needed.
+     */
+    public static EmbeddingWorker getInstance() {
+        return getInstances(1).get(0);
+    }
+    
+    /**
+     * Return the given number of application-wide workers, each its own python process, for embedding frames in
+     * parallel. Workers are kept between calls so that their processes stay warm.
+     */
+    public static synchronized List<EmbeddingWorker> getInstances(int count) {
+        if (count <= 0) throw new IllegalArgumentException("need at least one worker");
+        while (instances.size() < count) {
+            instances.add(new EmbeddingWorker());
+        }
+        return new ArrayList<>(instances.subList(0, count));
+    }
+    
+    /**
+     * Stop all the application-wide workers. Called when the application exits.
+     */
+    public static synchronized void shutdownInstances() {
+        for (EmbeddingWorker worker : instances) {
+            worker.shutdown();
+        }
+        instances.clear();
+    }
+    
+    private EmbeddingWorker() {}
+    
+    /**
+     * Compute the fingerprint of the face in the given slot of the frame ring. The worker reads the pixels straight
+     * out of the shared ring, so the slot must not be released until this returns. Returns null if there is no
+     * (significant) face in the frame, and throws IOException if the worker failed or timed out.
+     */
+    public synchronized double[] embed(FrameRing ring, int slot) throws IOException {
+        byte[] path = ring.getPath().toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + path.length);
+        payload.putInt(slot).put(path);
+        
+        Response response = request(REQUEST_EMBED_SLOT, payload.array());
+        if (response.status == STATUS_NO_FACE) return null;
+        if (response.payload.length != 128 * Double.BYTES) {
+            throw new IOException("Expected a 128-double fingerprint, got " + response.payload.length + " bytes");
+        }
+        double[] fingerprint = new double[128];
+        ByteBuffer.wrap(response.payload).asDoubleBuffer().get(fingerprint);
+        return fingerprint;
+    }
+    
+    /**
+     * Health check: whether the worker is running and answers a ping promptly. Doesn't start the worker.
+     */
+    public synchronized boolean isHealthy() {
+        if (process == null || !process.isAlive() || !warm) return false;
+        try {
+            return exchange(REQUEST_PING, new byte[0], PING_TIMEOUT_MS).status == STATUS_OK;
+        } catch (IOException e) {
+            System.err.println("[EmbeddingWorker] Health check failed: " + e.getMessage());
+            destroy();
+            return false;
+        }
+    }
+    
+    /**
+     * Stop the python process. A later request will start a new one.
+     */
+    public synchronized void shutdown() {
+        destroy();
+    }
+    
+    private Response request(byte type, byte[] payload) throws IOException {
+        // if the worker died since the last request, restart it and try once more
+        for (int attempt = 0; ; attempt++) {
+            ensureStarted();
+            Response response;
+            try {
+                response = exchange(type, payload, warm ? REQUEST_TIMEOUT_MS : STARTUP_TIMEOUT_MS);
+            } catch (WorkerTimeoutException e) {
+                destroy();
+                throw e;
+            } catch (IOException e) {
+                System.err.println("[EmbeddingWorker] Worker died, restarting: " + e.getMessage());
+                destroy();
+                if (attempt >= 1) throw e;
+                continue;
+            }
+            
+            warm = true;
+            if (response.status == STATUS_ERROR) {
+                // the worker is fine, the request itself failed
+                throw new IOException("fingerprint.py: " + new String(response.payload, StandardCharsets.UTF_8));
+            }
+            return response;
+        }
+    }
+    
+    private Response exchange(byte type, byte[] payload, long timeoutMs) throws IOException {
+        toWorker.writeByte(type);
+        toWorker.writeInt(payload.length);
+        toWorker.write(payload);
+        toWorker.flush();
+        
+        Future<Response> future = reader.submit(() -> {
+            byte status = fromWorker.readByte();
+            byte[] body = new byte[fromWorker.readInt()];
+            fromWorker.readFully(body);
+            return new Response(status, body);
+        });
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new WorkerTimeoutException("No response from fingerprint.py within " + timeoutMs + " ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for fingerprint.py", e);
+        }
+    }
+    
+    private void ensureStarted() throws IOException {
+        if (process != null && process.isAlive()) return;
+        destroy();
+        
+        System.out.println("[EmbeddingWorker] Starting " + String.join(" ", COMMAND));
+        process = new ProcessBuilder(COMMAND).start();
+        toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        warm = false;
+        
+        // pipe error logging from python script to System.out
+        Process started = process;
+        Thread logPipe = new Thread(() -> {
+            try (BufferedReader errors = new BufferedReader(new InputStreamReader(started.getErrorStream()))) {
+                String line;
+                while ((line = errors.readLine()) != null) {
+                    System.out.println("[fingerprint.py] " + line);
+                }
+            } catch (IOException ignored) {
+                // the process went away, nothing more to log
+            }
+        }, "embedding-worker-log");
+        logPipe.setDaemon(true);
+        logPipe.start();
+    }
+    
+    private void destroy() {
+        if (process == null) return;
+        try {
+            toWorker.close(); // the worker exits by itself when its input closes
+        } catch (IOException ignored) {
+            // it's going away either way
+        }
+        try {
+            if (!process.waitFor(1, TimeUnit.SECONDS)) process.destroyForcibly();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+        process = null;
+        toWorker = null;
+        fromWorker = null;
+        warm = false;
+    }
+    
+    private static class Response {
+        
+        final byte status;
+        final byte[] payload;
+        
+        Response(byte status, byte[] payload) {
+            this.status = status;
+            this.payload = payload;
+        }
+        
+    }
+    
+    private static class WorkerTimeoutException extends IOException {
+        
+        WorkerTimeoutException(String message) {
+            super(message);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,103 @@
+package ca.uwaterloo.arka.pharmacy.face;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.indexer.DoubleIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.RectVector;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.bytedeco.opencv.opencv_objdetect.CascadeClassifier;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_64F;
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_core.mean;
+import static org.bytedeco.opencv.global.opencv_core.meanStdDev;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_BGR2GRAY;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.Laplacian;
+import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * A cheap check, done in the JVM with OpenCV, of whether a frame is worth sending to the (expensive) embedder:
+ * it must be neither too dark nor too bright, sharp enough (by the variance of its Laplacian), and have a face in it
+ * according to a Haar cascade. The checks run on a small greyscale copy of the frame, cheapest first.
+ * The cascade is read from haarcascade_frontalface_default.xml in the working directory (py-setup.sh copies it out
+ * of the opencv-python package); without it, the face check is skipped.
+ * Not thread-safe: use one gate per thread.
+ */
+public class FrameQualityGate {
+    
+    public enum Verdict { OK, TOO_DARK, TOO_BRIGHT, BLURRY, NO_FACE }
+    
+    private static final String CASCADE_FILE = "haarcascade_frontalface_default.xml";
+    
+    private static final int CHECK_WIDTH = 320;
+    private static final double MIN_BRIGHTNESS = 40;
+    private static final double MAX_BRIGHTNESS = 220;
+    private static final double MIN_SHARPNESS = 50; // Laplacian variance at CHECK_WIDTH
+    private static final int MIN_FACE_SIZE = 40; // pixels at CHECK_WIDTH
+    
+    private static boolean warnedNoCascade = false;
+    
+    private final CascadeClassifier faceDetector;
+    
+    // reused between frames
+    private final Mat grey = new Mat();
+    private final Mat small = new Mat();
+    private final Mat laplacian = new Mat();
+    private final Mat laplacianMean = new Mat();
+    private final Mat laplacianStdDev = new Mat();
+    private final RectVector faces = new RectVector();
+    
+    public FrameQualityGate() {
+        if (Files.isRegularFile(Paths.get(CASCADE_FILE))) {
+            faceDetector = new CascadeClassifier(CASCADE_FILE);
+        } else {
+            faceDetector = null;
+            synchronized (FrameQualityGate.class) {
+                if (!warnedNoCascade) {
+                    System.err.println("[FrameQualityGate] " + CASCADE_FILE + " not found, not checking for faces");
+                    warnedNoCascade = true;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Check the given packed BGR pixels (e.g. a frame ring slot).
+     */
+    public Verdict check(ByteBuffer bgr, int width, int height) {
+        try (Mat frame = new Mat(height, width, CV_8UC3, new BytePointer(bgr))) {
+            return check(frame);
+        }
+    }
+    
+    private Verdict check(Mat frame) {
+        cvtColor(frame, grey, COLOR_BGR2GRAY);
+        double scale = Math.min(1.0, (double) CHECK_WIDTH / frame.cols());
+        resize(grey, small, new Size((int) (frame.cols() * scale), (int) (frame.rows() * scale)), 0, 0, INTER_AREA);
+        
+        double brightness = mean(small).get(0);
+        if (brightness < MIN_BRIGHTNESS) return Verdict.TOO_DARK;
+        if (brightness > MAX_BRIGHTNESS) return Verdict.TOO_BRIGHT;
+        
+        Laplacian(small, laplacian, CV_64F);
+        meanStdDev(laplacian, laplacianMean, laplacianStdDev);
+        DoubleIndexer stdDev = laplacianStdDev.createIndexer();
+        double sharpness = stdDev.get(0) * stdDev.get(0);
+        stdDev.release();
+        if (sharpness < MIN_SHARPNESS) return Verdict.BLURRY;
+        
+        if (faceDetector != null) {
+            faceDetector.detectMultiScale(small, faces, 1.1, 4, 0,
+                    new Size(MIN_FACE_SIZE, MIN_FACE_SIZE), new Size());
+            if (faces.size() == 0) return Verdict.NO_FACE;
+        }
+        return Verdict.OK;
+    }
+    
+}
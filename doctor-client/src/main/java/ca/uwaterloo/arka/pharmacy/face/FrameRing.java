@@ -0,0 +1,155 @@
+package ca.uwaterloo.arka.pharmacy.face;
+
+import org.bytedeco.javacv.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A memory-mapped ring of raw BGR frames shared with the python embedding worker, so that grabbed frames reach it
+ * without being encoded, written to disk, and decoded again. Frames are copied into a free slot once, and the slot
+ * index is what gets passed around; the slot belongs to whoever wrote it until it's released.
+ * The file lives in /dev/shm when that exists, so it is backed by memory rather than disk.
+ * Layout (all ints big-endian): a header of (magic, slot count, slot capacity, reserved), then each slot is a header
+ * of (width, height, row stride in bytes, data length) followed by slot capacity bytes of tightly packed BGR rows.
+ */
+public class FrameRing implements AutoCloseable {
+    
+    private static final int MAGIC = 0x41524B46; // "ARKF"
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_HEADER_SIZE = 16;
+    
+    private final Path file;
+    private final MappedByteBuffer map;
+    private final int slotCount;
+    private final int slotCapacity;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    
+    private long framesWritten = 0;
+    private long bytesCopied = 0;
+    
+    /**
+     * Create a ring of the given number of slots, each big enough for a width x height BGR frame.
+     */
+    public FrameRing(int slotCount, int width, int height) throws IOException {
+        if (slotCount <= 0 || width <= 0 || height <= 0) throw new IllegalArgumentException("empty frame ring");
+        this.slotCount = slotCount;
+        this.slotCapacity = width * height * 3;
+        
+        Path shm = Paths.get("/dev/shm");
+        Path dir = Files.isDirectory(shm) && Files.isWritable(shm)
+                ? shm : Paths.get(System.getProperty("java.io.tmpdir"));
+        file = Files.createTempFile(dir, "arka-frames-", ".ring");
+        file.toFile().deleteOnExit();
+        
+        long size = HEADER_SIZE + (long) slotCount * (SLOT_HEADER_SIZE + slotCapacity);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        map.putInt(0, MAGIC);
+        map.putInt(4, slotCount);
+        map.putInt(8, slotCapacity);
+        
+        for (int i = 0; i < slotCount; i++) freeSlots.add(i);
+    }
+    
+    /**
+     * Copy the given 8-bit, 3-channel frame into a free slot and return the slot index, or -1 if every slot is
+     * currently in use.
+     */
+    public synchronized int write(Frame frame) {
+        if (frame.imageDepth != Frame.DEPTH_UBYTE || frame.imageChannels != 3) {
+            throw new IllegalArgumentException("Only 8-bit BGR frames are supported");
+        }
+        int rowBytes = frame.imageWidth * 3;
+        int length = rowBytes * frame.imageHeight;
+        if (length > slotCapacity) {
+            throw new IllegalArgumentException("Frame of " + frame.imageWidth + "x" + frame.imageHeight
+                    + " doesn't fit in a slot of " + slotCapacity + " bytes");
+        }
+        
+        Integer slot = freeSlots.poll();
+        if (slot == null) return -1;
+        
+        // copy row by row, since the grabbed frame's rows may be padded
+        ByteBuffer src = ((ByteBuffer) frame.image[0]).duplicate();
+        ByteBuffer dst = map.duplicate();
+        dst.position(slotOffset(slot) + SLOT_HEADER_SIZE);
+        int stride = frame.imageStride; // in elements, which are bytes here
+        for (int row = 0; row < frame.imageHeight; row++) {
+            src.limit(src.capacity()).position(row * stride).limit(row * stride + rowBytes);
+            dst.put(src);
+        }
+        
+        int header = slotOffset(slot);
+        map.putInt(header, frame.imageWidth);
+        map.putInt(header + 4, frame.imageHeight);
+        map.putInt(header + 8, rowBytes);
+        map.putInt(header + 12, length);
+        
+        framesWritten++;
+        bytesCopied += length;
+        return slot;
+    }
+    
+    /**
+     * Give a slot back to the ring once nobody needs its frame anymore.
+     */
+    public synchronized void release(int slot) {
+        if (slot < 0 || slot >= slotCount) throw new IndexOutOfBoundsException("no slot " + slot);
+        if (!freeSlots.contains(slot)) freeSlots.add(slot);
+    }
+    
+    public int getWidth(int slot) {
+        return map.getInt(slotOffset(slot));
+    }
+    
+    public int getHeight(int slot) {
+        return map.getInt(slotOffset(slot) + 4);
+    }
+    
+    /**
+     * A read-only view of the packed BGR pixels in the given slot. Only valid until the slot is released.
+     */
+    public ByteBuffer getPixels(int slot) {
+        ByteBuffer view = map.duplicate();
+        int start = slotOffset(slot) + SLOT_HEADER_SIZE;
+        view.position(start).limit(start + map.getInt(slotOffset(slot) + 12));
+        return view.slice().asReadOnlyBuffer();
+    }
+    
+    public Path getPath() {
+        return file;
+    }
+    
+    public synchronized long getFramesWritten() {
+        return framesWritten;
+    }
+    
+    public synchronized long getBytesCopied() {
+        return bytesCopied;
+    }
+    
+    @Override
+    public void close() {
+        try {
+            Files.deleteIfExists(file); // the mapping stays valid until it's garbage collected
+        } catch (IOException e) {
+            System.err.println("[FrameRing] Could not delete " + file);
+            e.printStackTrace();
+        }
+    }
+    
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * (SLOT_HEADER_SIZE + slotCapacity);
+    }
+    
+}
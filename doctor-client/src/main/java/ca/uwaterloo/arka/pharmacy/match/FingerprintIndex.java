@@ -0,0 +1,145 @@
+package ca.uwaterloo.arka.pharmacy.match;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory index of face fingerprints for exact nearest-neighbour matching by squared Euclidean distance.
+ * Fingerprints are kept as their raw 16-bit components packed one after the other in a single short[], so a query
+ * is a tight scan over one flat array. The scan keeps the k best matches so far and abandons a candidate as soon as
+ * its partial distance is already worse than all of them, which skips most of the work for most candidates.
+ * Removal swaps the last fingerprint into the removed one's place, so it's O(1).
+ * Thread-safe.
+ */
+public class FingerprintIndex implements FingerprintMatcher {
+    
+    public static final int DIMENSIONS = 128;
+    
+    // the scale between a fingerprint's components in [-1, 1] and their 16-bit representation
+    private static final double SCALE = 32768;
+    
+    // how many dimensions to accumulate between checks of whether a candidate is already too far away
+    private static final int ABANDON_BLOCK = 16;
+    
+    private short[] vectors = new short[1024 * DIMENSIONS];
+    private int[] ids = new int[1024];
+    private int size = 0;
+    private final Map<Integer, Integer> rows = new HashMap<>(); // id -> row
+    
+    /**
+     * A match from a query: the id of the matching fingerprint and its squared distance to the query, in squared
+     * 16-bit units (see squaredDistance(double) to convert a distance between unscaled fingerprints).
+     */
+    public static class Match {
+        
+        public final int id;
+        public final long distance;
+        
+        Match(int id, long distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+        
+        @Override
+        public String toString() {
+            return "Match{id=" + id + ", distance=" + distance + '}';
+        }
+        
+    }
+    
+    /**
+     * Convert a Euclidean distance between fingerprints with components in [-1, 1] (like face_recognition's
+     * tolerance) to the squared distance that queries report.
+     */
+    public static long squaredDistance(double distance) {
+        double scaled = distance * SCALE;
+        return (long) (scaled * scaled);
+    }
+    
+    @Override
+    public synchronized void put(int id, short[] fingerprint) {
+        if (fingerprint.length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+        Integer row = rows.get(id);
+        if (row == null) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                vectors = Arrays.copyOf(vectors, size * 2 * DIMENSIONS);
+            }
+            row = size++;
+            rows.put(id, row);
+            ids[row] = id;
+        }
+        System.arraycopy(fingerprint, 0, vectors, row * DIMENSIONS, DIMENSIONS);
+    }
+    
+    @Override
+    public synchronized void remove(int id) {
+        Integer row = rows.remove(id);
+        if (row == null) return;
+        int last = --size;
+        if (row != last) {
+            // fill the hole with the last one
+            System.arraycopy(vectors, last * DIMENSIONS, vectors, row * DIMENSIONS, DIMENSIONS);
+            ids[row] = ids[last];
+            rows.put(ids[row], row);
+        }
+    }
+    
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * This looks at every fingerprint, but a tight bound makes it much faster, since most candidates are abandoned
+     * early.
+     */
+    @Override
+    public synchronized List<Match> nearest(short[] query, int k, long maxDistance) {
+        if (query.length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+        if (k <= 0) return new ArrayList<>();
+        
+        // the best k so far, sorted by distance; worst is the distance to beat to get in
+        int[] bestRows = new int[k];
+        long[] bestDistances = new long[k];
+        int found = 0;
+        long worst = maxDistance;
+        
+        short[] vectors = this.vectors;
+        for (int row = 0; row < size; row++) {
+            int base = row * DIMENSIONS;
+            long distance = 0;
+            for (int block = 0; block < DIMENSIONS && distance < worst; block += ABANDON_BLOCK) {
+                long partial = 0;
+                for (int j = block; j < block + ABANDON_BLOCK; j++) {
+                    long diff = vectors[base + j] - query[j];
+                    partial += diff * diff;
+                }
+                distance += partial;
+            }
+            if (distance >= worst) continue;
+            
+            // insertion into the sorted best list
+            int at = Math.min(found, k - 1);
+            while (at > 0 && bestDistances[at - 1] > distance) {
+                bestDistances[at] = bestDistances[at - 1];
+                bestRows[at] = bestRows[at - 1];
+                at--;
+            }
+            bestDistances[at] = distance;
+            bestRows[at] = row;
+            if (found < k) found++;
+            if (found == k) worst = bestDistances[k - 1];
+        }
+        
+        List<Match> matches = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            matches.add(new Match(ids[bestRows[i]], bestDistances[i]));
+        }
+        return matches;
+    }
+    
+}
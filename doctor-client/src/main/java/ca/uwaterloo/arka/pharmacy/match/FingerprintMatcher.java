@@ -0,0 +1,40 @@
+package ca.uwaterloo.arka.pharmacy.match;
+
+import java.util.List;
+
+/**
+ * Something that finds the face fingerprints closest to a query fingerprint. Fingerprints are given as their 128
+ * raw 16-bit components (see FingerprintCodec) and distances are squared Euclidean distances between those.
+ * The app's matcher, with every patient's fingerprint, is UserDao.fingerprintMatcher().
+ */
+public interface FingerprintMatcher {
+    
+    /**
+     * Add the fingerprint with the given id, replacing any fingerprint it had before.
+     */
+    void put(int id, short[] fingerprint);
+    
+    /**
+     * Remove the fingerprint with the given id, if there is one.
+     */
+    void remove(int id);
+    
+    /**
+     * The number of fingerprints in the matcher.
+     */
+    int size();
+    
+    /**
+     * Return the (up to) k fingerprints closest to the query, closest first.
+     */
+    default List<FingerprintIndex.Match> nearest(short[] query, int k) {
+        return nearest(query, k, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Return the (up to) k fingerprints closest to the query that are closer than the given squared distance,
+     * closest first.
+     */
+    List<FingerprintIndex.Match> nearest(short[] query, int k, long maxDistance);
+    
+}
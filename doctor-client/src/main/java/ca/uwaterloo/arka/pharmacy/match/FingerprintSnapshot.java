@@ -0,0 +1,515 @@
+package ca.uwaterloo.arka.pharmacy.match;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Face fingerprints kept in a file that's memory-mapped and matched against in place, so opening it takes
+ * milliseconds however many fingerprints there are, instead of fetching and decoding every one of them.
+ * The snapshot file holds fixed-size records sorted by id, and changes since it was written are appended to a delta
+ * file beside it (and kept in memory). Once there are enough changes, they are merged into a new snapshot in the
+ * background. Matching is an exact scan like FingerprintIndex, over the mapped records and then the changes;
+ * FingerprintStore keeps an HNSW index beside it for fast matching, and only matches here until that's loaded.
+ * Layout (all little-endian): a header of (magic, version, record count, record size, CRC32 of the records, reserved),
+ * then the records, each an id followed by the fingerprint's 128 16-bit values (as in FingerprintCodec, without the
+ * version byte). Each delta record is an op (put or delete), an id, a fingerprint (zeros for a delete), and a CRC32
+ * of the rest, so a record cut short by a crash is noticed and dropped.
+ * Thread-safe.
+ */
+public class FingerprintSnapshot implements FingerprintMatcher, AutoCloseable {
+    
+    private static final int MAGIC = 0x41524B53; // "ARKS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int FINGERPRINT_SIZE = FingerprintIndex.DIMENSIONS * 2;
+    private static final int RECORD_SIZE = 4 + FINGERPRINT_SIZE;
+    private static final int DELTA_RECORD_SIZE = 1 + 4 + FINGERPRINT_SIZE + 4;
+    
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    
+    // compact once there are this many changes, or a sixteenth of the snapshot if that's more
+    private static final int COMPACT_MIN_CHANGES = 1024;
+    
+    private static final int DIMENSIONS = FingerprintIndex.DIMENSIONS;
+    private static final int ABANDON_BLOCK = 16;
+    private static final short[] DELETED = new short[0];
+    
+    private final Path path;
+    private final Path deltaPath;
+    
+    private IntBuffer baseIds; // the record ids, at 65 ints per record
+    private ShortBuffer baseFingerprints; // the records' fingerprints, at 130 shorts per record
+    private int baseCount;
+    
+    private FileChannel delta;
+    private long deltaRecords;
+    private final Map<Integer, short[]> changes = new HashMap<>(); // id -> fingerprint, or DELETED
+    private int size;
+    private boolean compacting = false;
+    
+    private final ByteBuffer deltaRecord = ByteBuffer.allocate(DELTA_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    
+    private FingerprintSnapshot(Path path) {
+        this.path = path;
+        this.deltaPath = Paths.get(path + ".delta");
+    }
+    
+    /**
+     * Open the snapshot at the given path, along with its changes, creating an empty one if there's nothing there.
+     */
+    public static FingerprintSnapshot open(Path path) throws IOException {
+        long start = System.nanoTime();
+        FingerprintSnapshot snapshot = new FingerprintSnapshot(path);
+        if (!Files.exists(path)) export(path, new TreeMap<>());
+        snapshot.mapBase();
+        snapshot.size = snapshot.baseCount;
+        snapshot.delta = FileChannel.open(snapshot.deltaPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        snapshot.replayDelta(0);
+        System.out.printf("[FingerprintSnapshot] Opened %s: %d fingerprints (%d changes since the snapshot) "
+                + "in %.1f ms%n", path, snapshot.size, snapshot.deltaRecords, (System.nanoTime() - start) / 1e6);
+        return snapshot;
+    }
+    
+    /**
+     * Write a snapshot file of the given fingerprints by id, replacing whatever is at the path. Its delta file, if
+     * there is one, should be deleted too.
+     */
+    public static void export(Path path, SortedMap<Integer, short[]> fingerprints) throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(path)) {
+            for (Map.Entry<Integer, short[]> entry : fingerprints.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            writer.finish();
+        }
+    }
+    
+    /**
+     * Delete the snapshot at the given path and its changes.
+     */
+    public static void delete(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(Paths.get(path + ".delta"));
+    }
+    
+    @Override
+    public synchronized void put(int id, short[] fingerprint) {
+        if (fingerprint.length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+        if (Arrays.equals(get(id), fingerprint)) return; // nothing's changed, e.g. the list was just reloaded
+        append(OP_PUT, id, fingerprint);
+    }
+    
+    @Override
+    public synchronized void remove(int id) {
+        if (get(id) == null) return;
+        append(OP_DELETE, id, null);
+    }
+    
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * The ids of every fingerprint in the snapshot, in no particular order.
+     */
+    public synchronized int[] ids() {
+        int[] all = new int[size];
+        int i = 0;
+        for (int record = 0; record < baseCount; record++) {
+            int id = baseIds.get(record * (RECORD_SIZE / 4));
+            if (!changes.containsKey(id)) all[i++] = id;
+        }
+        for (Map.Entry<Integer, short[]> change : changes.entrySet()) {
+            if (change.getValue() != DELETED) all[i++] = change.getKey();
+        }
+        return all;
+    }
+    
+    /**
+     * Return the fingerprint with the given id, or null if there isn't one.
+     */
+    public synchronized short[] get(int id) {
+        short[] changed = changes.get(id);
+        if (changed != null) return changed == DELETED ? null : changed.clone();
+        int record = findBaseRecord(id);
+        if (record < 0) return null;
+        short[] fingerprint = new short[DIMENSIONS];
+        ShortBuffer fingerprints = baseFingerprints.duplicate();
+        fingerprints.position(record * (RECORD_SIZE / 2) + 2);
+        fingerprints.get(fingerprint);
+        return fingerprint;
+    }
+    
+    /**
+     * This scans the mapped records in place, abandoning each one as soon as it's too far away, then the changes.
+     */
+    @Override
+    public synchronized List<FingerprintIndex.Match> nearest(short[] query, int k, long maxDistance) {
+        if (query.length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+        List<FingerprintIndex.Match> matches = new ArrayList<>();
+        if (k <= 0) return matches;
+        
+        // the best k so far, sorted by distance; worst is the distance to beat to get in
+        int[] bestIds = new int[k];
+        long[] bestDistances = new long[k];
+        int found = 0;
+        long worst = maxDistance;
+        
+        IntBuffer ids = baseIds;
+        ShortBuffer fingerprints = baseFingerprints;
+        boolean anyChanges = !changes.isEmpty();
+        for (int record = 0; record < baseCount; record++) {
+            int base = record * (RECORD_SIZE / 2) + 2;
+            long distance = 0;
+            for (int block = 0; block < DIMENSIONS && distance < worst; block += ABANDON_BLOCK) {
+                long partial = 0;
+                for (int j = block; j < block + ABANDON_BLOCK; j++) {
+                    long diff = fingerprints.get(base + j) - query[j];
+                    partial += diff * diff;
+                }
+                distance += partial;
+            }
+            if (distance >= worst) continue;
+            int id = ids.get(record * (RECORD_SIZE / 4));
+            if (anyChanges && changes.containsKey(id)) continue; // superseded
+            
+            found = insertMatch(bestIds, bestDistances, found, id, distance);
+            if (found == k) worst = bestDistances[k - 1];
+        }
+        
+        for (Map.Entry<Integer, short[]> change : changes.entrySet()) {
+            short[] fingerprint = change.getValue();
+            if (fingerprint == DELETED) continue;
+            long distance = 0;
+            for (int j = 0; j < DIMENSIONS; j++) {
+                long diff = fingerprint[j] - query[j];
+                distance += diff * diff;
+            }
+            if (distance >= worst) continue;
+            
+            found = insertMatch(bestIds, bestDistances, found, change.getKey(), distance);
+            if (found == k) worst = bestDistances[k - 1];
+        }
+        
+        for (int i = 0; i < found; i++) {
+            matches.add(new FingerprintIndex.Match(bestIds[i], bestDistances[i]));
+        }
+        return matches;
+    }
+    
+    /**
+     * Close the delta file. The snapshot can't be used afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        while (compacting) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        delta.close();
+    }
+    
+    /** Insert into the sorted best list (of capacity bestIds.length) and return how many are in it now. */
+    private static int insertMatch(int[] bestIds, long[] bestDistances, int found, int id, long distance) {
+        int k = bestIds.length;
+        int at = Math.min(found, k - 1);
+        while (at > 0 && bestDistances[at - 1] > distance) {
+            bestDistances[at] = bestDistances[at - 1];
+            bestIds[at] = bestIds[at - 1];
+            at--;
+        }
+        bestDistances[at] = distance;
+        bestIds[at] = id;
+        return Math.min(found + 1, k);
+    }
+    
+    /** Binary search of the (sorted) snapshot records for the given id; returns its record or -1. */
+    private int findBaseRecord(int id) {
+        int low = 0;
+        int high = baseCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = baseIds.get(mid * (RECORD_SIZE / 4));
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    
+    private void mapBase() throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not a fingerprint snapshot");
+        }
+        if (map.getInt(4) != VERSION) throw new IOException(path + " has unsupported version " + map.getInt(4));
+        int count = map.getInt(8);
+        if (map.getInt(12) != RECORD_SIZE || map.capacity() != HEADER_SIZE + (long) count * RECORD_SIZE) {
+            throw new IOException(path + " is the wrong size for its records");
+        }
+        
+        ByteBuffer records = map.duplicate();
+        records.position(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(records);
+        if (crc.getValue() != map.getLong(16)) throw new IOException(path + " is corrupt (bad checksum)");
+        
+        records.position(HEADER_SIZE);
+        ByteBuffer slice = records.slice().order(ByteOrder.LITTLE_ENDIAN);
+        baseIds = slice.asIntBuffer();
+        baseFingerprints = slice.asShortBuffer();
+        baseCount = count;
+    }
+    
+    /** Apply the delta records from the given one on, and drop any torn record at the end. */
+    private void replayDelta(long fromRecord) throws IOException {
+        long length = delta.size();
+        ByteBuffer record = ByteBuffer.allocate(DELTA_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        long position = fromRecord * DELTA_RECORD_SIZE;
+        deltaRecords = fromRecord;
+        while (position + DELTA_RECORD_SIZE <= length) {
+            record.clear();
+            readFully(record, position);
+            crc.reset();
+            crc.update(record.array(), 0, DELTA_RECORD_SIZE - 4);
+            if ((int) crc.getValue() != record.getInt(DELTA_RECORD_SIZE - 4)) break;
+            
+            byte op = record.get(0);
+            int id = record.getInt(1);
+            if (op == OP_PUT) {
+                short[] fingerprint = new short[DIMENSIONS];
+                for (int j = 0; j < DIMENSIONS; j++) {
+                    fingerprint[j] = record.getShort(5 + 2 * j);
+                }
+                apply(id, fingerprint);
+            } else {
+                apply(id, DELETED);
+            }
+            position += DELTA_RECORD_SIZE;
+            deltaRecords++;
+        }
+        if (position < length) {
+            System.err.println("[FingerprintSnapshot] Dropping " + (length - position) + " bytes of damaged changes");
+            delta.truncate(position);
+        }
+    }
+    
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (delta.read(buffer, position + buffer.position()) < 0) break;
+        }
+    }
+    
+    private void append(byte op, int id, short[] fingerprint) {
+        ByteBuffer record = deltaRecord;
+        record.clear();
+        record.put(op);
+        record.putInt(id);
+        for (int j = 0; j < DIMENSIONS; j++) {
+            record.putShort(fingerprint == null ? 0 : fingerprint[j]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        try {
+            long position = deltaRecords * DELTA_RECORD_SIZE;
+            while (record.hasRemaining()) {
+                position += delta.write(record, position);
+            }
+            deltaRecords++;
+        } catch (IOException e) {
+            // still match against it; it just won't be there next time
+            System.err.println("[FingerprintSnapshot] Could not record change to fingerprint " + id + ": " + e);
+        }
+        
+        apply(id, fingerprint == null ? DELETED : fingerprint.clone());
+        if (!compacting && changes.size() >= Math.max(COMPACT_MIN_CHANGES, baseCount / 16)) {
+            compacting = true;
+            Thread thread = new Thread(this::compact, "fingerprint-snapshot-compact");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    private void apply(int id, short[] fingerprint) {
+        short[] old = changes.get(id);
+        boolean existed = old == null ? findBaseRecord(id) >= 0 : old != DELETED;
+        boolean exists = fingerprint != DELETED;
+        if (existed != exists) size += exists ? 1 : -1;
+        changes.put(id, fingerprint);
+    }
+    
+    /**
+     * Merge the changes so far into a new snapshot, without holding the lock while writing it, then drop them from
+     * the delta file. Changes that come in meanwhile stay in the delta.
+     */
+    private void compact() {
+        long start = System.nanoTime();
+        try {
+            IntBuffer ids;
+            ShortBuffer fingerprints;
+            int count;
+            TreeMap<Integer, short[]> merged;
+            long compactedRecords;
+            synchronized (this) {
+                ids = baseIds;
+                fingerprints = baseFingerprints;
+                count = baseCount;
+                merged = new TreeMap<>(changes);
+                compactedRecords = deltaRecords;
+            }
+            
+            // both are sorted by id, so merge them
+            Path newPath = Paths.get(path + ".new");
+            try (SnapshotWriter writer = new SnapshotWriter(newPath)) {
+                Iterator<Map.Entry<Integer, short[]>> changed = merged.entrySet().iterator();
+                Map.Entry<Integer, short[]> next = changed.hasNext() ? changed.next() : null;
+                short[] fingerprint = new short[DIMENSIONS];
+                for (int record = 0; record < count; record++) {
+                    int id = ids.get(record * (RECORD_SIZE / 4));
+                    while (next != null && next.getKey() < id) {
+                        if (next.getValue() != DELETED) writer.add(next.getKey(), next.getValue());
+                        next = changed.hasNext() ? changed.next() : null;
+                    }
+                    if (next != null && next.getKey() == id) continue; // superseded, written above or below
+                    ShortBuffer source = fingerprints.duplicate();
+                    source.position(record * (RECORD_SIZE / 2) + 2);
+                    source.get(fingerprint);
+                    writer.add(id, fingerprint);
+                }
+                while (next != null) {
+                    if (next.getValue() != DELETED) writer.add(next.getKey(), next.getValue());
+                    next = changed.hasNext() ? changed.next() : null;
+                }
+                writer.finish();
+            }
+            
+            synchronized (this) {
+                // a crash from here on just replays some changes that are already in the new snapshot
+                Files.move(newPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                mapBase();
+                
+                // keep only the changes that came in while we were writing, in a new delta file that replaces the
+                // old one in one step, so a crash leaves one or the other
+                long remaining = deltaRecords - compactedRecords;
+                ByteBuffer kept = ByteBuffer.allocate((int) (remaining * DELTA_RECORD_SIZE));
+                readFully(kept, compactedRecords * DELTA_RECORD_SIZE);
+                kept.flip();
+                Path newDeltaPath = Paths.get(deltaPath + ".new");
+                try (FileChannel newDelta = FileChannel.open(newDeltaPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (kept.hasRemaining()) {
+                        newDelta.write(kept, kept.position());
+                    }
+                    newDelta.force(false);
+                }
+                delta.close();
+                Files.move(newDeltaPath, deltaPath, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                delta = FileChannel.open(deltaPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                changes.clear();
+                size = baseCount;
+                replayDelta(0);
+            }
+            System.out.printf("[FingerprintSnapshot] Compacted %d changes into %s in %.1f ms%n", merged.size(), path,
+                    (System.nanoTime() - start) / 1e6);
+        } catch (IOException e) {
+            System.err.println("[FingerprintSnapshot] Could not compact " + path + ", will try again later: " + e);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                notifyAll();
+            }
+        }
+    }
+    
+    /** Writes a snapshot file, given records in increasing order of id. */
+    private static class SnapshotWriter implements AutoCloseable {
+        
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32 crc = new CRC32();
+        private int count = 0;
+        private long lastId = Long.MIN_VALUE;
+        
+        SnapshotWriter(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(HEADER_SIZE);
+        }
+        
+        void add(int id, short[] fingerprint) throws IOException {
+            if (id <= lastId) throw new IllegalArgumentException("snapshot records must be in increasing order of id");
+            lastId = id;
+            if (buffer.remaining() < RECORD_SIZE) flush();
+            buffer.putInt(id);
+            for (short value : fingerprint) {
+                buffer.putShort(value);
+            }
+            count++;
+        }
+        
+        void finish() throws IOException {
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(RECORD_SIZE).putLong(crc.getValue());
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+        
+        private void flush() throws IOException {
+            buffer.flip();
+            ByteBuffer checked = buffer.duplicate();
+            crc.update(checked);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+        
+    }
+    
+}
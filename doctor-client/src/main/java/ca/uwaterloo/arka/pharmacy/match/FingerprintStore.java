@@ -0,0 +1,159 @@
+package ca.uwaterloo.arka.pharmacy.match;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The face fingerprints of every patient, kept on disk in a directory so that they're there from the moment the app
+ * starts: a FingerprintSnapshot holds the fingerprints themselves, and an HnswIndex saved beside it answers queries.
+ * Opening the store only maps the snapshot. The index is loaded on a background thread, and brought up to date with
+ * the snapshot (which is cheap, since putting an unchanged fingerprint does nothing); until it's ready, queries are
+ * answered by an exact scan of the snapshot, which is slower but just as right. The index is saved again on close.
+ * If the snapshot can't be opened or made, the fingerprints are only kept in memory, in the index.
+ * Thread-safe.
+ */
+public final class FingerprintStore implements FingerprintMatcher, AutoCloseable {
+    
+    private static final String SNAPSHOT_FILE = "fingerprints.snapshot";
+    private static final String INDEX_FILE = "fingerprints.hnsw";
+    
+    private final Path indexPath;
+    private final FingerprintSnapshot snapshot; // or null if we couldn't open one
+    private volatile HnswIndex index = null; // null until it's loaded
+    private Set<Integer> changedWhileLoading = new HashSet<>(); // the ids put or removed before the index was ready
+    
+    private FingerprintStore(Path indexPath, FingerprintSnapshot snapshot) {
+        this.indexPath = indexPath;
+        this.snapshot = snapshot;
+    }
+    
+    /**
+     * Open the store in the given directory, creating it if there's nothing there, and start loading its index.
+     */
+    public static FingerprintStore open(Path directory) {
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        FingerprintStore store = new FingerprintStore(directory.resolve(INDEX_FILE), openSnapshot(snapshotPath));
+        if (store.snapshot == null) {
+            store.index = new HnswIndex();
+            store.changedWhileLoading = null;
+            return store;
+        }
+        
+        Thread loader = new Thread(store::loadIndex, "fingerprint-index-load");
+        loader.setDaemon(true);
+        loader.start();
+        return store;
+    }
+    
+    private static FingerprintSnapshot openSnapshot(Path path) {
+        try {
+            Files.createDirectories(path.getParent());
+            return FingerprintSnapshot.open(path);
+        } catch (IOException e) {
+            System.err.println("[FingerprintStore] Could not open " + path + ", starting a new one: " + e);
+        }
+        try {
+            FingerprintSnapshot.delete(path);
+            return FingerprintSnapshot.open(path);
+        } catch (IOException e) {
+            System.err.println("[FingerprintStore] Could not create " + path + ", keeping fingerprints in memory: "
+                    + e);
+            return null;
+        }
+    }
+    
+    @Override
+    public synchronized void put(int id, short[] fingerprint) {
+        if (snapshot != null) snapshot.put(id, fingerprint);
+        if (index != null) index.put(id, fingerprint);
+        else changedWhileLoading.add(id);
+    }
+    
+    @Override
+    public synchronized void remove(int id) {
+        if (snapshot != null) snapshot.remove(id);
+        if (index != null) index.remove(id);
+        else changedWhileLoading.add(id);
+    }
+    
+    @Override
+    public int size() {
+        return snapshot != null ? snapshot.size() : index.size();
+    }
+    
+    /**
+     * The ids of every fingerprint in the store, in no particular order.
+     */
+    public int[] ids() {
+        return snapshot != null ? snapshot.ids() : index.ids();
+    }
+    
+    /**
+     * Whether the index has loaded, so that queries are fast.
+     */
+    public boolean isIndexReady() {
+        return index != null;
+    }
+    
+    @Override
+    public List<FingerprintIndex.Match> nearest(short[] query, int k, long maxDistance) {
+        HnswIndex ready = index;
+        return ready != null ? ready.nearest(query, k, maxDistance) : snapshot.nearest(query, k, maxDistance);
+    }
+    
+    /**
+     * Save the index, if it's loaded, and close the snapshot. The store can't be used afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (snapshot == null) return;
+        if (index != null) {
+            long start = System.nanoTime();
+            Path temporary = indexPath.resolveSibling(indexPath.getFileName() + ".new");
+            index.save(temporary);
+            Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.printf("[FingerprintStore] Saved the index of %d fingerprints in %d ms%n", index.size(),
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+        snapshot.close();
+    }
+    
+    /** Load the saved index (or start a new one), bring it up to date with the snapshot, and start using it. */
+    private void loadIndex() {
+        long start = System.nanoTime();
+        HnswIndex loaded;
+        try {
+            loaded = Files.exists(indexPath) ? HnswIndex.load(indexPath) : new HnswIndex();
+        } catch (IOException e) {
+            System.err.println("[FingerprintStore] Could not load " + indexPath + ", building it again: " + e);
+            loaded = new HnswIndex();
+        }
+        
+        // the snapshot has the last word: it's written as changes happen, and the index only on close
+        for (int id : snapshot.ids()) {
+            short[] fingerprint = snapshot.get(id);
+            if (fingerprint != null) loaded.put(id, fingerprint);
+        }
+        for (int id : loaded.ids()) {
+            if (snapshot.get(id) == null) loaded.remove(id);
+        }
+        
+        synchronized (this) {
+            for (int id : changedWhileLoading) {
+                short[] fingerprint = snapshot.get(id);
+                if (fingerprint != null) loaded.put(id, fingerprint);
+                else loaded.remove(id);
+            }
+            changedWhileLoading = null;
+            index = loaded;
+        }
+        System.out.printf("[FingerprintStore] Loaded the index of %d fingerprints in %d ms%n", loaded.size(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+    
+}
@@ -0,0 +1,573 @@
+package ca.uwaterloo.arka.pharmacy.match;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * An approximate nearest-neighbour index of face fingerprints: a hierarchical navigable small world (HNSW) graph,
+ * after Malkov and Yashunin. Every fingerprint is a node linked to a few of its near neighbours on level 0, and an
+ * exponentially shrinking random subset of the nodes is also linked on each level above that. A query walks greedily
+ * down the upper levels to find a good starting point, then does a best-first search of level 0 keeping the efSearch
+ * closest nodes it has seen, so it only looks at a tiny fraction of the fingerprints. A bigger efSearch is slower but
+ * misses the true nearest fingerprint less often.
+ * Removing a fingerprint only marks its node deleted: it stays in the graph as a stepping stone but never comes up as
+ * a match. Putting a fingerprint that's already there unchanged does nothing; changing one deletes its old node and
+ * inserts a new one. Once more nodes are deleted than not, the graph is rebuilt from the live ones on a background
+ * thread; the old graph keeps answering queries and taking changes until the new one replaces it.
+ * Thread-safe.
+ */
+public class HnswIndex implements FingerprintMatcher {
+    
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 64;
+    
+    private static final int DIMENSIONS = FingerprintIndex.DIMENSIONS;
+    
+    private static final int MAGIC = 0x41524B48; // "ARKH"
+    private static final int VERSION = 1;
+    
+    private final int m; // links per node on the upper levels, and what new nodes get on level 0
+    private final int maxM0; // links per node on level 0
+    private final int efConstruction;
+    private final double levelFactor;
+    private final Random random = new Random(42); // fixed, so the same inserts build the same graph
+    private int efSearch = DEFAULT_EF_SEARCH;
+    
+    // per node, by node number
+    private short[] vectors = new short[1024 * DIMENSIONS];
+    private int[] ids = new int[1024];
+    private boolean[] deleted = new boolean[1024];
+    private int[][][] links = new int[1024][][]; // [node][level] -> the number of neighbours, then the neighbours
+    private int nodeCount = 0;
+    private int deletedCount = 0;
+    private final Map<Integer, Integer> nodes = new HashMap<>(); // id -> live node
+    
+    private int entryPoint = -1;
+    private int topLevel = -1;
+    
+    // the changes made during a background rebuild, to apply to the new graph: id -> fingerprint, or null if removed
+    private Map<Integer, short[]> changedWhileRebuilding = null;
+    
+    // reused between searches
+    private int[] visited = new int[1024]; // == visitMark if visited in this search
+    private int visitMark = 0;
+    private final NodeHeap candidates = new NodeHeap(); // closest first
+    private final NodeHeap results = new NodeHeap(); // farthest first, by negated distance
+    
+    public HnswIndex() {
+        this(DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+    }
+    
+    /**
+     * Make an index whose nodes get m links on each level (2m on level 0), choosing them from the efConstruction
+     * closest nodes found when they're inserted.
+     */
+    public HnswIndex(int m, int efConstruction) {
+        if (m < 2 || m > 127) throw new IllegalArgumentException("m must be between 2 and 127");
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.levelFactor = 1 / Math.log(m);
+    }
+    
+    public synchronized int getEfSearch() {
+        return efSearch;
+    }
+    
+    /**
+     * Set how many candidates a query keeps while searching. Queries always keep at least as many as they return.
+     */
+    public synchronized void setEfSearch(int efSearch) {
+        if (efSearch < 1) throw new IllegalArgumentException("efSearch must be positive");
+        this.efSearch = efSearch;
+    }
+    
+    @Override
+    public synchronized void put(int id, short[] fingerprint) {
+        if (fingerprint.length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+        Integer old = nodes.get(id);
+        if (old != null && sameVector(old, fingerprint)) return; // nothing's changed, e.g. a record was reopened
+        if (old != null) {
+            nodes.remove(id);
+            markDeleted(old);
+        }
+        insert(id, fingerprint);
+        if (changedWhileRebuilding != null) changedWhileRebuilding.put(id, fingerprint.clone());
+        rebuildIfNeeded();
+    }
+    
+    @Override
+    public synchronized void remove(int id) {
+        Integer node = nodes.remove(id);
+        if (node == null) return;
+        markDeleted(node);
+        if (changedWhileRebuilding != null) changedWhileRebuilding.put(id, null);
+        rebuildIfNeeded();
+    }
+    
+    @Override
+    public synchronized int size() {
+        return nodes.size();
+    }
+    
+    /**
+     * The ids of every fingerprint in the index, in no particular order.
+     */
+    public synchronized int[] ids() {
+        int[] all = new int[nodes.size()];
+        int i = 0;
+        for (int id : nodes.keySet()) {
+            all[i++] = id;
+        }
+        return all;
+    }
+    
+    @Override
+    public synchronized List<FingerprintIndex.Match> nearest(short[] query, int k, long maxDistance) {
+        if (query.length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+        List<FingerprintIndex.Match> matches = new ArrayList<>();
+        if (k <= 0 || nodes.isEmpty()) return matches;
+        
+        int start = entryPoint;
+        for (int level = topLevel; level > 0; level--) {
+            start = greedyClosest(query, 0, start, level);
+        }
+        searchLayer(query, 0, new int[] { start }, 1, Math.max(efSearch, k), 0, true);
+        
+        // the results come out farthest first
+        int found = results.size();
+        int[] closest = new int[found];
+        long[] distances = new long[found];
+        for (int i = found - 1; i >= 0; i--) {
+            distances[i] = -results.peekKey();
+            closest[i] = results.pop();
+        }
+        for (int i = 0; i < found && matches.size() < k && distances[i] < maxDistance; i++) {
+            matches.add(new FingerprintIndex.Match(ids[closest[i]], distances[i]));
+        }
+        return matches;
+    }
+    
+    /**
+     * Write the index to the given file, to be read back with load().
+     */
+    public synchronized void save(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(nodeCount);
+            out.writeInt(entryPoint);
+            out.writeInt(topLevel);
+            for (int node = 0; node < nodeCount; node++) {
+                out.writeInt(ids[node]);
+                out.writeBoolean(deleted[node]);
+                for (int j = 0; j < DIMENSIONS; j++) {
+                    out.writeShort(vectors[node * DIMENSIONS + j]);
+                }
+                out.writeByte(links[node].length);
+                for (int[] neighbours : links[node]) {
+                    out.writeByte(neighbours[0]);
+                    for (int i = 1; i <= neighbours[0]; i++) {
+                        out.writeInt(neighbours[i]);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Read an index written by save().
+     */
+    public static HnswIndex load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) throw new IOException(path + " is not a fingerprint index");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException(path + " has unsupported index version " + version);
+            
+            HnswIndex index = new HnswIndex(in.readInt(), in.readInt());
+            index.efSearch = in.readInt();
+            int nodeCount = in.readInt();
+            index.entryPoint = in.readInt();
+            index.topLevel = in.readInt();
+            
+            index.ensureCapacity(nodeCount);
+            for (int node = 0; node < nodeCount; node++) {
+                index.ids[node] = in.readInt();
+                index.deleted[node] = in.readBoolean();
+                for (int j = 0; j < DIMENSIONS; j++) {
+                    index.vectors[node * DIMENSIONS + j] = in.readShort();
+                }
+                int levels = in.readUnsignedByte();
+                index.links[node] = new int[levels][];
+                for (int level = 0; level < levels; level++) {
+                    int[] neighbours = index.newLinks(level);
+                    neighbours[0] = in.readUnsignedByte();
+                    for (int i = 1; i <= neighbours[0]; i++) {
+                        neighbours[i] = in.readInt();
+                    }
+                    index.links[node][level] = neighbours;
+                }
+                
+                if (index.deleted[node]) {
+                    index.deletedCount++;
+                } else {
+                    index.nodes.put(index.ids[node], node);
+                }
+            }
+            index.nodeCount = nodeCount;
+            return index;
+        }
+    }
+    
+    private void insert(int id, short[] fingerprint) {
+        ensureCapacity(nodeCount + 1);
+        int node = nodeCount++;
+        int offset = node * DIMENSIONS;
+        System.arraycopy(fingerprint, 0, vectors, offset, DIMENSIONS);
+        ids[node] = id;
+        deleted[node] = false;
+        nodes.put(id, node);
+        
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = newLinks(l);
+        }
+        
+        if (entryPoint < 0) {
+            entryPoint = node;
+            topLevel = level;
+            return;
+        }
+        
+        int start = entryPoint;
+        for (int l = topLevel; l > level; l--) {
+            start = greedyClosest(vectors, offset, start, l);
+        }
+        int[] entries = { start };
+        int entryCount = 1;
+        for (int l = Math.min(level, topLevel); l >= 0; l--) {
+            searchLayer(vectors, offset, entries, entryCount, efConstruction, l, false);
+            int found = results.size();
+            int[] closest = new int[found];
+            long[] distances = new long[found];
+            for (int i = found - 1; i >= 0; i--) {
+                distances[i] = -results.peekKey();
+                closest[i] = results.pop();
+            }
+            
+            int[] neighbours = links[node][l];
+            selectNeighbours(closest, distances, found, m, neighbours);
+            for (int i = 1; i <= neighbours[0]; i++) {
+                link(neighbours[i], node, l);
+            }
+            
+            // the closest nodes on this level are where to start on the next one down
+            entries = closest;
+            entryCount = found;
+        }
+        
+        if (level > topLevel) {
+            entryPoint = node;
+            topLevel = level;
+        }
+    }
+    
+    /** Add a link from one node to another on a level, pruning the from node's links if it has too many. */
+    private void link(int from, int to, int level) {
+        int[] neighbours = links[from][level];
+        int max = neighbours.length - 1;
+        if (neighbours[0] < max) {
+            neighbours[++neighbours[0]] = to;
+            return;
+        }
+        
+        // sort the old and new links by distance and keep the best of them
+        int count = max + 1;
+        int[] candidates = new int[count];
+        long[] distances = new long[count];
+        int fromOffset = from * DIMENSIONS;
+        for (int i = 0; i < count; i++) {
+            int candidate = i < max ? neighbours[i + 1] : to;
+            long distance = distance(vectors, fromOffset, candidate * DIMENSIONS);
+            int at = i;
+            while (at > 0 && distances[at - 1] > distance) {
+                candidates[at] = candidates[at - 1];
+                distances[at] = distances[at - 1];
+                at--;
+            }
+            candidates[at] = candidate;
+            distances[at] = distance;
+        }
+        selectNeighbours(candidates, distances, count, max, neighbours);
+    }
+    
+    /**
+     * Choose up to max neighbours from the given candidates, sorted closest first, into the given links array.
+     * A candidate is only chosen if it's closer to the node than to every neighbour already chosen, which spreads
+     * the links out in different directions instead of bunching them up in the nearest cluster.
+     */
+    private void selectNeighbours(int[] candidates, long[] distances, int count, int max, int[] into) {
+        int chosen = 0;
+        for (int i = 0; i < count && chosen < max; i++) {
+            int candidate = candidates[i];
+            int offset = candidate * DIMENSIONS;
+            boolean good = true;
+            for (int j = 1; j <= chosen && good; j++) {
+                good = distance(vectors, offset, into[j] * DIMENSIONS) > distances[i];
+            }
+            if (good) into[++chosen] = candidate;
+        }
+        into[0] = chosen;
+    }
+    
+    /** Walk from the start node to its closest neighbour on the level until there's no closer one. */
+    private int greedyClosest(short[] query, int queryOffset, int start, int level) {
+        int node = start;
+        long best = distance(query, queryOffset, node * DIMENSIONS);
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            int[] neighbours = links[node][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                long distance = distance(query, queryOffset, neighbours[i] * DIMENSIONS);
+                if (distance < best) {
+                    best = distance;
+                    node = neighbours[i];
+                    moved = true;
+                }
+            }
+        }
+        return node;
+    }
+    
+    /**
+     * Best-first search of one level from the given entry nodes, leaving the (up to) ef closest nodes found in
+     * results. Deleted nodes are searched through but left out of the results if liveOnly is set.
+     */
+    private void searchLayer(short[] query, int queryOffset, int[] entries, int entryCount, int ef, int level,
+                             boolean liveOnly) {
+        if (++visitMark == 0) {
+            Arrays.fill(visited, 0);
+            visitMark = 1;
+        }
+        candidates.clear();
+        results.clear();
+        
+        for (int i = 0; i < entryCount; i++) {
+            int entry = entries[i];
+            visited[entry] = visitMark;
+            long distance = distance(query, queryOffset, entry * DIMENSIONS);
+            candidates.push(distance, entry);
+            if (!liveOnly || !deleted[entry]) {
+                results.push(-distance, entry);
+                if (results.size() > ef) results.pop();
+            }
+        }
+        
+        while (candidates.size() > 0) {
+            long distance = candidates.peekKey();
+            if (results.size() >= ef && distance > -results.peekKey()) break; // nothing closer left to find
+            int node = candidates.pop();
+            
+            int[] neighbours = links[node][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int neighbour = neighbours[i];
+                if (visited[neighbour] == visitMark) continue;
+                visited[neighbour] = visitMark;
+                
+                long neighbourDistance = distance(query, queryOffset, neighbour * DIMENSIONS);
+                if (results.size() < ef || neighbourDistance < -results.peekKey()) {
+                    candidates.push(neighbourDistance, neighbour);
+                    if (!liveOnly || !deleted[neighbour]) {
+                        results.push(-neighbourDistance, neighbour);
+                        if (results.size() > ef) results.pop();
+                    }
+                }
+            }
+        }
+    }
+    
+    private long distance(short[] a, int aOffset, int vectorOffset) {
+        short[] vectors = this.vectors;
+        long distance = 0;
+        for (int j = 0; j < DIMENSIONS; j++) {
+            long diff = a[aOffset + j] - vectors[vectorOffset + j];
+            distance += diff * diff;
+        }
+        return distance;
+    }
+    
+    private void markDeleted(int node) {
+        deleted[node] = true;
+        deletedCount++;
+    }
+    
+    private boolean sameVector(int node, short[] fingerprint) {
+        int offset = node * DIMENSIONS;
+        for (int j = 0; j < DIMENSIONS; j++) {
+            if (vectors[offset + j] != fingerprint[j]) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Once more nodes are deleted than not, start building the graph again from scratch out of the live nodes, on a
+     * background thread, unless that's happening already.
+     */
+    private void rebuildIfNeeded() {
+        if (changedWhileRebuilding != null || deletedCount <= nodes.size()) return;
+        int[] liveIds = new int[nodes.size()];
+        short[] liveVectors = new short[nodes.size() * DIMENSIONS];
+        int live = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (deleted[node]) continue;
+            liveIds[live] = ids[node];
+            System.arraycopy(vectors, node * DIMENSIONS, liveVectors, live * DIMENSIONS, DIMENSIONS);
+            live++;
+        }
+        
+        changedWhileRebuilding = new HashMap<>();
+        Thread thread = new Thread(() -> rebuild(liveIds, liveVectors), "hnsw-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Build a new graph of the given fingerprints without holding the lock, then bring it up to date and use it. If
+     * that fails (say it runs out of memory), keep the old graph, which has every change in it already, and stop
+     * recording changes, so that the next delete can try again.
+     */
+    private void rebuild(int[] liveIds, short[] liveVectors) {
+        boolean rebuilt = false;
+        try {
+            long start = System.nanoTime();
+            HnswIndex fresh = new HnswIndex(m, efConstruction);
+            short[] fingerprint = new short[DIMENSIONS];
+            for (int i = 0; i < liveIds.length; i++) {
+                System.arraycopy(liveVectors, i * DIMENSIONS, fingerprint, 0, DIMENSIONS);
+                fresh.insert(liveIds[i], fingerprint);
+            }
+            
+            synchronized (this) {
+                for (Map.Entry<Integer, short[]> change : changedWhileRebuilding.entrySet()) {
+                    Integer old = fresh.nodes.remove(change.getKey());
+                    if (old != null) fresh.markDeleted(old);
+                    if (change.getValue() != null) fresh.insert(change.getKey(), change.getValue());
+                }
+                changedWhileRebuilding = null;
+                
+                vectors = fresh.vectors;
+                ids = fresh.ids;
+                deleted = fresh.deleted;
+                links = fresh.links;
+                nodeCount = fresh.nodeCount;
+                deletedCount = fresh.deletedCount;
+                nodes.clear();
+                nodes.putAll(fresh.nodes);
+                entryPoint = fresh.entryPoint;
+                topLevel = fresh.topLevel;
+                visited = new int[fresh.visited.length];
+                visitMark = 0;
+                rebuilt = true;
+                System.out.printf("[HnswIndex] Rebuilt the graph of %d fingerprints in %d ms%n", nodes.size(),
+                        (System.nanoTime() - start) / 1_000_000);
+            }
+        } finally {
+            if (!rebuilt) {
+                synchronized (this) {
+                    changedWhileRebuilding = null;
+                }
+                System.err.println("[HnswIndex] Could not rebuild the graph, keeping the old one");
+            }
+        }
+    }
+    
+    private int[] newLinks(int level) {
+        return new int[1 + (level == 0 ? maxM0 : m)];
+    }
+    
+    private void ensureCapacity(int count) {
+        if (count <= ids.length) return;
+        int capacity = Math.max(count, ids.length * 2);
+        vectors = Arrays.copyOf(vectors, capacity * DIMENSIONS);
+        ids = Arrays.copyOf(ids, capacity);
+        deleted = Arrays.copyOf(deleted, capacity);
+        links = Arrays.copyOf(links, capacity);
+        visited = Arrays.copyOf(visited, capacity);
+    }
+    
+    /** A binary min-heap of nodes keyed by a long, without boxing. */
+    private static class NodeHeap {
+        
+        private long[] keys = new long[64];
+        private int[] values = new int[64];
+        private int size = 0;
+        
+        int size() {
+            return size;
+        }
+        
+        void clear() {
+            size = 0;
+        }
+        
+        long peekKey() {
+            return keys[0];
+        }
+        
+        void push(long key, int value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            int at = size++;
+            while (at > 0) {
+                int parent = (at - 1) / 2;
+                if (keys[parent] <= key) break;
+                keys[at] = keys[parent];
+                values[at] = values[parent];
+                at = parent;
+            }
+            keys[at] = key;
+            values[at] = value;
+        }
+        
+        /** Remove the smallest entry and return its value. */
+        int pop() {
+            int top = values[0];
+            long key = keys[--size];
+            int value = values[size];
+            int at = 0;
+            while (true) {
+                int child = 2 * at + 1;
+                if (child >= size) break;
+                if (child + 1 < size && keys[child + 1] < keys[child]) child++;
+                if (keys[child] >= key) break;
+                keys[at] = keys[child];
+                values[at] = values[child];
+                at = child;
+            }
+            keys[at] = key;
+            values[at] = value;
+            return top;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,124 @@
+package ca.uwaterloo.arka.pharmacy.match;
+
+import ca.uwaterloo.arka.pharmacy.db.FingerprintCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Like FingerprintIndex, but keeps each fingerprint in FingerprintCodec's 8-bit form, about half the size.
+ * Queries stay at 16 bits, so only the stored side loses precision. The distance from a query q to a stored
+ * fingerprint with codes c and scale s is |q|^2 - 2s(q.c) + s^2|c|^2, worked out on the codes directly a block of
+ * dimensions at a time: q.c and |c|^2 are integer sums over the block, and |q|^2 per block is worked out once per
+ * query. As in FingerprintIndex, a candidate is abandoned after any block that leaves it too far away.
+ * Distances are in squared 16-bit units, like FingerprintIndex's.
+ * Thread-safe.
+ */
+public class QuantizedFingerprintIndex implements FingerprintMatcher {
+    
+    private static final int DIMENSIONS = FingerprintIndex.DIMENSIONS;
+    
+    // how many dimensions to accumulate between checks of whether a candidate is already too far away
+    private static final int ABANDON_BLOCK = 16;
+    
+    private byte[] codes = new byte[1024 * DIMENSIONS];
+    private float[] scales = new float[1024];
+    private int[] ids = new int[1024];
+    private int size = 0;
+    private final Map<Integer, Integer> rows = new HashMap<>(); // id -> row
+    
+    @Override
+    public synchronized void put(int id, short[] fingerprint) {
+        if (fingerprint.length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+        Integer row = rows.get(id);
+        if (row == null) {
+            if (size == ids.length) {
+                codes = Arrays.copyOf(codes, size * 2 * DIMENSIONS);
+                scales = Arrays.copyOf(scales, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            row = size++;
+            rows.put(id, row);
+            ids[row] = id;
+        }
+        
+        scales[row] = FingerprintCodec.quantize8(fingerprint, codes, row * DIMENSIONS);
+    }
+    
+    @Override
+    public synchronized void remove(int id) {
+        Integer row = rows.remove(id);
+        if (row == null) return;
+        int last = --size;
+        if (row != last) {
+            // fill the hole with the last one
+            System.arraycopy(codes, last * DIMENSIONS, codes, row * DIMENSIONS, DIMENSIONS);
+            scales[row] = scales[last];
+            ids[row] = ids[last];
+            rows.put(ids[row], row);
+        }
+    }
+    
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+    
+    @Override
+    public synchronized List<FingerprintIndex.Match> nearest(short[] query, int k, long maxDistance) {
+        if (query.length != DIMENSIONS) throw new IllegalArgumentException("fingerprints have 128 dimensions");
+        List<FingerprintIndex.Match> matches = new ArrayList<>();
+        if (k <= 0) return matches;
+        
+        // |q|^2 of each block of the query
+        long[] blockNorms = new long[DIMENSIONS / ABANDON_BLOCK];
+        for (int j = 0; j < DIMENSIONS; j++) {
+            blockNorms[j / ABANDON_BLOCK] += query[j] * query[j];
+        }
+        
+        // the best k so far, sorted by distance; worst is the distance to beat to get in
+        int[] bestRows = new int[k];
+        long[] bestDistances = new long[k];
+        int found = 0;
+        long worst = maxDistance;
+        
+        byte[] codes = this.codes;
+        for (int row = 0; row < size; row++) {
+            int base = row * DIMENSIONS;
+            double scale = scales[row];
+            double distance = 0;
+            for (int block = 0; block < DIMENSIONS && distance < worst; block += ABANDON_BLOCK) {
+                int dot = 0;
+                int codeNorm = 0;
+                for (int j = block; j < block + ABANDON_BLOCK; j++) {
+                    int code = codes[base + j];
+                    dot += query[j] * code;
+                    codeNorm += code * code;
+                }
+                distance += blockNorms[block / ABANDON_BLOCK] - 2 * scale * dot + scale * scale * codeNorm;
+            }
+            if (distance >= worst) continue;
+            
+            // insertion into the sorted best list
+            int at = Math.min(found, k - 1);
+            while (at > 0 && bestDistances[at - 1] > distance) {
+                bestDistances[at] = bestDistances[at - 1];
+                bestRows[at] = bestRows[at - 1];
+                at--;
+            }
+            bestDistances[at] = Math.round(distance);
+            bestRows[at] = row;
+            if (found < k) found++;
+            if (found == k) worst = bestDistances[k - 1];
+        }
+        
+        for (int i = 0; i < found; i++) {
+            matches.add(new FingerprintIndex.Match(ids[bestRows[i]], bestDistances[i]));
+        }
+        return matches;
+    }
+    
+}